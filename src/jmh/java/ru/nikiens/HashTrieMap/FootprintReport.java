@@ -0,0 +1,150 @@
+package ru.nikiens.HashTrieMap;
+
+import com.google.common.collect.ImmutableMap;
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+import org.openjdk.jol.vm.VirtualMachine;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Deep heap size of {@link HashTrieMap}, {@link HashMap} and Guava's {@code ImmutableMap} across map
+ * sizes and key distributions, measured with JOL. The reported sizes include keys and values.
+ * <p>
+ * For {@code HashTrieMap} it also reports the bytes an {@code insert} retains on top of the
+ * snapshot it was applied to, both for a new key and for a replaced value: the new map object and
+ * the nodes and arrays not shared with the snapshot, each measured by JOL. The inserted key and
+ * value are not counted.
+ * <p>
+ * The largest size is given by the first argument. Run through the {@code footprint} Gradle task,
+ * which starts one JVM with compressed oops and one without.
+ */
+public final class FootprintReport {
+    private static final int DEFAULT_MAX_SIZE = 10_000_000;
+    private static final int MAX_SAMPLED_INSERTS = 100;
+    private static final int MIN_SAMPLED_INSERTS = 10;
+
+    private FootprintReport() {
+    }
+
+    /**
+     * Key whose hash code is shared by four consecutive ids, so a quarter of the keys end up in
+     * hash collision nodes.
+     */
+    private static final class CollidingKey {
+        private final int id;
+
+        private CollidingKey(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof CollidingKey) && ((CollidingKey) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id >>> 2;
+        }
+    }
+
+    private enum KeyType {
+        SEQUENTIAL(i -> i),
+        // Multiplying by an odd constant is a bijection, so the scattered keys stay distinct
+        RANDOM(i -> i * 0x9E3779B9),
+        COLLIDING(CollidingKey::new);
+
+        private final IntFunction<Object> keys;
+
+        KeyType(IntFunction<Object> keys) {
+            this.keys = keys;
+        }
+    }
+
+    public static void main(String[] args) {
+        int maxSize = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_MAX_SIZE;
+
+        System.out.printf("Compressed oops: %s%n", compressedOops());
+        System.out.printf("%-10s %-12s %10s %14s %10s %12s %12s%n",
+                "keys", "map", "size", "bytes", "per entry", "new key", "new value");
+
+        for (KeyType keyType : KeyType.values()) {
+            for (int size = 1; size <= maxSize; size *= 10) {
+                Object[] keys = new Object[size];
+
+                for (int i = 0; i < size; i++) {
+                    keys[i] = keyType.keys.apply(i);
+                }
+
+                reportHashTrieMap(keyType, keys);
+                reportHashMap(keyType, keys);
+                reportImmutableMap(keyType, keys);
+            }
+        }
+    }
+
+    private static void reportHashTrieMap(KeyType keyType, Object[] keys) {
+        HashTrieMap<Object, Object> map = HashTrieMap.empty();
+
+        for (int i = 0; i < keys.length; i++) {
+            map = map.insert(keys[i], i);
+        }
+
+        VirtualMachine vm = VM.current();
+        int sampledInserts = Math.max(MIN_SAMPLED_INSERTS, Math.min(MAX_SAMPLED_INSERTS, 10_000_000 / keys.length));
+
+        long newKeyBytes = 0;
+        long newValueBytes = 0;
+
+        for (int i = 0; i < sampledInserts; i++) {
+            Object newKey = keyType.keys.apply(keys.length + i);
+            Object existingKey = keys[i % keys.length];
+
+            HashTrieMap<Object, Object> withNewKey = map.insert(newKey, i);
+            HashTrieMap<Object, Object> withNewValue = map.insert(existingKey, -i - 1);
+
+            newKeyBytes += vm.sizeOf(withNewKey) + withNewKey.uniqueBytes(map, vm::sizeOf);
+            newValueBytes += vm.sizeOf(withNewValue) + withNewValue.uniqueBytes(map, vm::sizeOf);
+        }
+
+        print(keyType, "HashTrieMap", keys.length, GraphLayout.parseInstance(map).totalSize(),
+                String.valueOf(newKeyBytes / sampledInserts), String.valueOf(newValueBytes / sampledInserts));
+    }
+
+    private static void reportHashMap(KeyType keyType, Object[] keys) {
+        Map<Object, Object> map = new HashMap<>();
+
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], i);
+        }
+
+        print(keyType, "HashMap", keys.length, GraphLayout.parseInstance(map).totalSize(), "-", "-");
+    }
+
+    private static void reportImmutableMap(KeyType keyType, Object[] keys) {
+        ImmutableMap.Builder<Object, Object> builder = ImmutableMap.builderWithExpectedSize(keys.length);
+
+        for (int i = 0; i < keys.length; i++) {
+            builder.put(keys[i], i);
+        }
+
+        print(keyType, "ImmutableMap", keys.length, GraphLayout.parseInstance(builder.build()).totalSize(), "-", "-");
+    }
+
+    private static void print(KeyType keyType, String map, int size, long bytes, String newKey, String newValue) {
+        System.out.printf("%-10s %-12s %10d %14d %10.1f %12s %12s%n",
+                keyType.name().toLowerCase(), map, size, bytes, (double) bytes / size, newKey, newValue);
+    }
+
+    private static String compressedOops() {
+        return ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+                .getVMOption("UseCompressedOops")
+                .getValue();
+    }
+}
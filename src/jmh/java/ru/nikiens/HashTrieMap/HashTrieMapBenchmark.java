@@ -0,0 +1,88 @@
+package ru.nikiens.HashTrieMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and allocation of single-entry reads and updates. Run with the {@code gc} profiler:
+ * {@code gc.alloc.rate.norm} must be zero for the lookups and the no-op updates, and no more than
+ * the copied path plus the map itself for the other updates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashTrieMapBenchmark {
+    @Param({"8", "1000", "1000000"})
+    private int size;
+
+    private HashTrieMap<Integer, Integer> map;
+
+    private Integer presentKey;
+    private Integer presentValue;
+    private Integer absentKey;
+    private Integer newValue;
+
+    @Setup
+    public void setUp() {
+        HashTrieMap<Integer, Integer> map = HashTrieMap.empty();
+
+        for (int i = 0; i < size; i++) {
+            map = map.insert(i, i);
+        }
+
+        this.map = map;
+        this.presentKey = size / 2;
+        this.presentValue = map.get(presentKey);
+        this.absentKey = -1;
+        this.newValue = -size;
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(presentKey);
+    }
+
+    @Benchmark
+    public boolean containsAbsentKey() {
+        return map.containsKey(absentKey);
+    }
+
+    @Benchmark
+    public HashTrieMap<Integer, Integer> insertSameValue() {
+        return map.insert(presentKey, presentValue);
+    }
+
+    @Benchmark
+    public HashTrieMap<Integer, Integer> deleteAbsentKey() {
+        return map.delete(absentKey);
+    }
+
+    @Benchmark
+    public HashTrieMap<Integer, Integer> insertNewValue() {
+        return map.insert(presentKey, newValue);
+    }
+
+    @Benchmark
+    public HashTrieMap<Integer, Integer> insertNewKey() {
+        return map.insert(absentKey, newValue);
+    }
+
+    @Benchmark
+    public HashTrieMap<Integer, Integer> deletePresentKey() {
+        return map.delete(presentKey);
+    }
+}
@@ -0,0 +1,182 @@
+package ru.nikiens.HashTrieMap;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+/**
+ * Persistent bidirectional map made of two {@link HashTrieMap}s, one per direction, which are
+ * updated together. Both directions share their structure with the previous version, and the
+ * inverse view shares both tries with this map.
+ */
+public final class HashTrieBiMap<K, V> extends AbstractPersistentMap<K, V>
+        implements PersistentBiMap<K, V> {
+
+    private static final HashTrieBiMap<?, ?> EMPTY = new HashTrieBiMap<>(HashTrieMap.empty(), HashTrieMap.empty());
+
+    private final HashTrieMap<K, V> forward;
+    private final HashTrieMap<V, K> backward;
+
+    private HashTrieBiMap<V, K> inverse;
+
+    private HashTrieBiMap(HashTrieMap<K, V> forward, HashTrieMap<V, K> backward) {
+        this.forward = forward;
+        this.backward = backward;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> HashTrieBiMap<K, V> empty() {
+        return (HashTrieBiMap<K, V>) EMPTY;
+    }
+
+    /* ------------- PersistentBiMap API ---------- */
+
+    @Override
+    public HashTrieBiMap<K, V> insert(K k, V v) {
+        if (backward.containsKey(v)) {
+            if (Objects.equals(backward.get(v), k)) {
+                return this;
+            }
+            throw new IllegalArgumentException("Value already present: " + v);
+        }
+
+        return forceInsert(k, v);
+    }
+
+    @Override
+    public HashTrieBiMap<K, V> forceInsert(K k, V v) {
+        HashTrieMap<K, V> forward = this.forward;
+        HashTrieMap<V, K> backward = this.backward;
+
+        if (backward.containsKey(v)) {
+            K previousKey = backward.get(v);
+
+            if (Objects.equals(previousKey, k)) {
+                return this;
+            }
+            forward = forward.delete(previousKey);
+        }
+
+        if (forward.containsKey(k)) {
+            backward = backward.delete(forward.get(k));
+        }
+
+        return new HashTrieBiMap<>(forward.insert(k, v), backward.insert(v, k));
+    }
+
+    @Override
+    public HashTrieBiMap<K, V> delete(Object o) {
+        if (!forward.containsKey(o)) {
+            return this;
+        }
+
+        return new HashTrieBiMap<>(forward.delete(o), backward.delete(forward.get(o)));
+    }
+
+    @Override
+    public HashTrieBiMap<K, V> insertAll(Map<? extends K, ? extends V> map) {
+        HashTrieBiMap<K, V> dst = this;
+
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            dst = dst.insert(entry.getKey(), entry.getValue());
+        }
+
+        return dst;
+    }
+
+    @Override
+    public HashTrieBiMap<K, V> filter(BiPredicate<? super K, ? super V> predicate, boolean parallel) {
+        HashTrieMap<K, V> forward = this.forward.filter(predicate, parallel);
+
+        return (forward == this.forward)
+                ? this
+                : new HashTrieBiMap<>(forward, backward.filter((v, k) -> predicate.test(k, v), parallel));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the function maps two keys to the same value
+     */
+    @Override
+    public HashTrieBiMap<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function, boolean parallel) {
+        HashTrieMap<K, V> forward = this.forward.mapValues(function, parallel);
+
+        if (forward == this.forward) {
+            return this;
+        }
+
+        HashTrieMap<V, K> backward = this.backward;
+        MapDiff<K, V> diff = this.forward.diff(forward);
+
+        for (K key : diff.changed().keySet()) {
+            backward = backward.delete(this.forward.get(key));
+        }
+
+        for (Entry<K, V> entry : diff.changed().entrySet()) {
+            if (backward.containsKey(entry.getValue())) {
+                throw new IllegalArgumentException("Value already present: " + entry.getValue());
+            }
+            backward = backward.insert(entry.getValue(), entry.getKey());
+        }
+
+        return new HashTrieBiMap<>(forward, backward);
+    }
+
+    @Override
+    public HashTrieBiMap<K, V> filter(BiPredicate<? super K, ? super V> predicate) {
+        return filter(predicate, false);
+    }
+
+    @Override
+    public HashTrieBiMap<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function) {
+        return mapValues(function, false);
+    }
+
+    @Override
+    public HashTrieBiMap<K, V> removeIf(BiPredicate<? super K, ? super V> predicate) {
+        return filter(predicate.negate(), false);
+    }
+
+    @Override
+    public HashTrieBiMap<V, K> inverse() {
+        HashTrieBiMap<V, K> inv = inverse;
+
+        if (inv == null) {
+            inv = new HashTrieBiMap<>(backward, forward);
+            inv.inverse = this;
+            inverse = inv;
+        }
+        return inv;
+    }
+
+    /* ----------------- Map API ---------------- */
+
+    @Override
+    @NotNull
+    public Set<Entry<K, V>> entrySet() {
+        return forward.entrySet();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return forward.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return backward.containsKey(value);
+    }
+
+    @Override
+    public V get(Object key) {
+        return forward.get(key);
+    }
+
+    @Override
+    public int size() {
+        return forward.size();
+    }
+}
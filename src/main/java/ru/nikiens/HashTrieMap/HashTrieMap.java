@@ -2,53 +2,135 @@ package ru.nikiens.HashTrieMap;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.Serializable;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.ToLongFunction;
 
 public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
         implements PersistentMap<K, V> {
 
     private final Node<K, V> root;
+
+    /**
+     * Number of entries, or {@link #UNKNOWN_SIZE} for maps made by {@link #split(int)}.
+     */
     private final int size;
 
+    /**
+     * Number of entries counted by {@link #size()} for a map of unknown size, or 0 until then.
+     * Such maps hold more than {@link #SMALL_MAP_THRESHOLD} entries, so 0 is never a count.
+     */
+    private int countedSize;
+
     private HashTrieMap(Node<K, V> root, int size) {
         this.root = root;
         this.size = size;
     }
 
     public HashTrieMap() {
-        this(new BitmapIndexedNode<>(0, 0, new Object[0]), 0);
+        this(ArrayNode.empty(), 0);
     }
 
-    private static final class Observer {
-        private boolean isModified;
-        private boolean isReplaced;
+    private static final HashTrieMap<?, ?> EMPTY = new HashTrieMap<>();
 
-        private Observer() {
+    /**
+     * Maps of at most this many entries are stored as a flat array of keys and values instead of
+     * a trie.
+     */
+    private static final int SMALL_MAP_THRESHOLD = 8;
+
+    /**
+     * Upper bound on the number of nodes on a path from the root, collision nodes included.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    private static final int UNKNOWN_SIZE = -1;
+
+    /**
+     * Initial capacity of a page of a map of unknown size, so a large limit does not allocate
+     * more than the map may hold.
+     */
+    private static final int PAGE_CAPACITY = 1024;
+
+    /**
+     * Object layout assumed by {@link #estimatedBytes()}: a 64-bit JVM with compressed oops.
+     */
+    private static final int OBJECT_HEADER_BYTES = 12;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> HashTrieMap<K, V> empty() {
+        return (HashTrieMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Returns a map holding the entries in a trie even if there are few enough of them to be
+     * stored flat. Lets tests run the trie and collision nodes on a handful of entries.
+     */
+    static <K, V> HashTrieMap<K, V> trieOf(Map<? extends K, ? extends V> map) {
+        Node<K, V> root = BitmapIndexedNode.empty();
+
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            root = root.insert(entry.getKey(), entry.getValue(), Objects.hashCode(entry.getKey()), 0);
+        }
+        return new HashTrieMap<>(root, map.size());
+    }
+
+    /**
+     * Wraps the root, flattening it if the map is small. A map of unknown size is only counted up
+     * to the small-map threshold.
+     */
+    private static <K, V> HashTrieMap<K, V> of(Node<K, V> root, int size) {
+        if (size == UNKNOWN_SIZE) {
+            size = countUpTo(root, SMALL_MAP_THRESHOLD);
+
+            if (size > SMALL_MAP_THRESHOLD) {
+                return new HashTrieMap<>(root, UNKNOWN_SIZE);
+            }
+        }
+
+        if (size == 0) {
+            return empty();
         }
 
-        private boolean isModified() {
-            return this.isModified;
+        if (size <= SMALL_MAP_THRESHOLD && !(root instanceof ArrayNode)) {
+            root = ArrayNode.flatten(root, size);
         }
+        return new HashTrieMap<>(root, size);
+    }
+
+    /**
+     * Counts the entries dropped by a bulk transform. Single-entry updates do not need it: a node
+     * returns itself when nothing has changed.
+     */
+    private static final class Observer {
+        private int deletedCount;
 
-        private void setModified() {
-            this.isModified = true;
+        private Observer() {
         }
 
-        private boolean isReplaced() {
-            return this.isReplaced;
+        private int getDeletedCount() {
+            return this.deletedCount;
         }
 
-        private void setReplaced() {
-            this.isReplaced = true;
-            this.isModified = true;
+        private void addDeleted(int count) {
+            this.deletedCount += count;
         }
     }
 
@@ -59,9 +141,25 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
 
         abstract V find(K key, int hash, int shift);
 
-        abstract Node<K, V> insert(K key, V value, int hash, int shift, Observer observer);
+        /**
+         * Returns {@code this} if the key is already mapped to the same value instance.
+         */
+        abstract Node<K, V> insert(K key, V value, int hash, int shift);
+
+        /**
+         * Returns {@code this} if the key is absent.
+         */
+        abstract Node<K, V> delete(K key, int hash, int shift);
 
-        abstract Node<K, V> delete(K key, int hash, int shift, Observer observer);
+        abstract Node<K, V> transform(BiPredicate<? super K, ? super V> predicate,
+                                      BiFunction<? super K, ? super V, ? extends V> function,
+                                      int shift, Observer observer);
+
+        Node<K, V> parallelTransform(BiPredicate<? super K, ? super V> predicate,
+                                     BiFunction<? super K, ? super V, ? extends V> function,
+                                     Observer observer) {
+            return transform(predicate, function, 0, observer);
+        }
 
         abstract Node<K, V> getNode(int index);
 
@@ -75,6 +173,33 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
 
         abstract int getPayloadArity();
 
+        /**
+         * Returns an equal subtree made of nodes registered in the canonicalizer. Sub-nodes are
+         * interned first, so {@link #equals(Object)} may compare them by reference.
+         */
+        abstract Node<K, V> intern(NodeCanonicalizer canonicalizer);
+
+        abstract int count();
+
+        /**
+         * Tells whether the node returned by {@link #insert} for the hash replaced a value rather
+         * than added a key. A replacement copies the nodes on the path without changing their
+         * shape, so only bitmaps and arities are compared; keys are neither hashed nor compared.
+         */
+        abstract boolean isReplacedBy(Node<K, V> updated, int hash, int shift);
+
+        /**
+         * Returns the estimated size of the fields of this node, the object header excluded.
+         */
+        abstract int fieldBytes();
+
+        /**
+         * Returns the size of this node and of the arrays it owns which are not shared with the
+         * base node, each object measured by the given function. Sub-nodes, keys and values are
+         * not included.
+         */
+        abstract long shallowSize(Node<K, V> base, ToLongFunction<Object> sizeOf);
+
         private Size sizePredicate() {
             if (getNodeArity() != 0) {
                 return Size.MORE;
@@ -102,6 +227,8 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
             INSERT_VALUE, INSERT_NODE
         }
 
+        private static final BitmapIndexedNode<?, ?> EMPTY = new BitmapIndexedNode<>(0, 0, new Object[0]);
+
         private final int payloadMap;
         private final int nodeMap;
 
@@ -113,6 +240,11 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
             this.contents = contents;
         }
 
+        @SuppressWarnings("unchecked")
+        private static <K, V> BitmapIndexedNode<K, V> empty() {
+            return (BitmapIndexedNode<K, V>) EMPTY;
+        }
+
         private static int mask(int hash, int shift) {
             return (hash >>> shift) & PARTITION_BITMASK;
         }
@@ -153,6 +285,70 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
             return Integer.bitCount(payloadMap);
         }
 
+        @Override
+        Node<K, V> intern(NodeCanonicalizer canonicalizer) {
+            Object[] contents = this.contents;
+
+            for (int i = 0; i < getNodeArity(); i++) {
+                Node<K, V> subNode = getNode(i);
+                Node<K, V> canonical = subNode.intern(canonicalizer);
+
+                if (canonical != subNode) {
+                    if (contents == this.contents) {
+                        contents = this.contents.clone();
+                    }
+                    contents[contents.length - 1 - i] = canonical;
+                }
+            }
+
+            return canonicalizer.canonicalize(
+                    (contents == this.contents) ? this : new BitmapIndexedNode<K, V>(nodeMap, payloadMap, contents));
+        }
+
+        /**
+         * Shallow structural equality: keys are compared by value, values and sub-nodes by
+         * reference.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof BitmapIndexedNode)) return false;
+
+            BitmapIndexedNode<?, ?> node = (BitmapIndexedNode<?, ?>) o;
+
+            if (nodeMap != node.nodeMap || payloadMap != node.payloadMap) {
+                return false;
+            }
+
+            for (int i = 0; i < 2 * getPayloadArity(); i += 2) {
+                if (!sameKey(contents[i], node.contents[i]) || contents[i + 1] != node.contents[i + 1]) {
+                    return false;
+                }
+            }
+
+            for (int i = 2 * getPayloadArity(); i < contents.length; i++) {
+                if (contents[i] != node.contents[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 * nodeMap + payloadMap;
+
+            for (int i = 0; i < 2 * getPayloadArity(); i += 2) {
+                result = 31 * result + Objects.hashCode(contents[i]);
+                result = 31 * result + System.identityHashCode(contents[i + 1]);
+            }
+
+            for (int i = 2 * getPayloadArity(); i < contents.length; i++) {
+                result = 31 * result + System.identityHashCode(contents[i]);
+            }
+            return result;
+        }
+
         @Override
         boolean containsKey(K key, int hash, int shift) {
             int bitPos = getBitPosition(hash, shift);
@@ -188,14 +384,16 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
         }
 
         @Override
-        Node<K, V> insert(K key, V value, int hash, int shift, Observer observer) {
+        Node<K, V> insert(K key, V value, int hash, int shift) {
             int bitPos = getBitPosition(hash, shift);
             int payloadIndex = getIndex(payloadMap, bitPos);
             int nodeIndex = contents.length - 1 - getIndex(nodeMap, bitPos);
 
             if ((bitPos & payloadMap) != 0) {
-                if (getKey(payloadIndex) == key) {
-                    observer.setReplaced();
+                if (Objects.equals(getKey(payloadIndex), key)) {
+                    if (getValue(payloadIndex) == value) {
+                        return this;
+                    }
 
                     Object[] modified = copyAndModifyContents(Operation.INSERT_VALUE, bitPos);
                     modified[2 * payloadIndex + 1] = value;
@@ -211,8 +409,6 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
                         shift + PARTITION_OFFSET
                 );
 
-                observer.setModified();
-
                 Object[] modified = copyAndModifyContents(Operation.DEINLINE_ENTRY, bitPos);
                 modified[nodeIndex - 1] = subNode;
 
@@ -220,10 +416,10 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
             }
 
             if ((bitPos & nodeMap) != 0) {
-                Node<K, V> subNode = getNode(getIndex(nodeMap, bitPos))
-                        .insert(key, value, hash, shift + PARTITION_OFFSET, observer);
+                Node<K, V> node = getNode(getIndex(nodeMap, bitPos));
+                Node<K, V> subNode = node.insert(key, value, hash, shift + PARTITION_OFFSET);
 
-                if (observer.isModified()) {
+                if (subNode != node) {
                     Object[] modified = copyAndModifyContents(Operation.INSERT_NODE, bitPos);
                     modified[nodeIndex] = subNode;
 
@@ -233,8 +429,6 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
                 return this;
             }
 
-            observer.setModified();
-
             Object[] modified = copyAndModifyContents(Operation.INSERT_ENTRY, bitPos);
             modified[2 * payloadIndex] = key;
             modified[2 * payloadIndex + 1] = value;
@@ -243,7 +437,7 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
         }
 
         @Override
-        Node<K, V> delete(K key, int hash, int shift, Observer observer) {
+        Node<K, V> delete(K key, int hash, int shift) {
             int bitPos = getBitPosition(hash, shift);
             int payloadIndex = getIndex(payloadMap, bitPos);
             int nodeIndex = contents.length - 1 - getIndex(nodeMap, bitPos);
@@ -253,8 +447,6 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
                     return this;
                 }
 
-                observer.setModified();
-
                 if (getNodeArity() == 0 && getPayloadArity() == 2) {
                     int payloadMap = (shift == 0) ? this.payloadMap ^ bitPos : getBitPosition(hash, 0);
 
@@ -268,10 +460,10 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
             }
 
             if ((bitPos & nodeMap) != 0) {
-                Node<K, V> subNode = getNode(getIndex(nodeMap, bitPos))
-                        .delete(key, hash, shift + PARTITION_OFFSET, observer);
+                Node<K, V> node = getNode(getIndex(nodeMap, bitPos));
+                Node<K, V> subNode = node.delete(key, hash, shift + PARTITION_OFFSET);
 
-                if (observer.isModified()) {
+                if (subNode != node) {
                     switch (subNode.sizePredicate()) {
                         case EMPTY:
                             throw new IllegalStateException();
@@ -298,6 +490,232 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
             return this;
         }
 
+        @Override
+        Node<K, V> transform(BiPredicate<? super K, ? super V> predicate,
+                             BiFunction<? super K, ? super V, ? extends V> function,
+                             int shift, Observer observer) {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Node<K, V>[] subNodes = new Node[getNodeArity()];
+
+            for (int i = 0; i < subNodes.length; i++) {
+                subNodes[i] = getNode(i).transform(predicate, function, shift + PARTITION_OFFSET, observer);
+            }
+            return rebuild(predicate, function, subNodes, observer);
+        }
+
+        @Override
+        Node<K, V> parallelTransform(BiPredicate<? super K, ? super V> predicate,
+                                     BiFunction<? super K, ? super V, ? extends V> function,
+                                     Observer observer) {
+            List<ForkJoinTask<Node<K, V>>> tasks = new ArrayList<>(getNodeArity());
+            Observer[] observers = new Observer[getNodeArity()];
+
+            for (int i = 0; i < getNodeArity(); i++) {
+                Node<K, V> node = getNode(i);
+                Observer subObserver = observers[i] = new Observer();
+
+                Callable<Node<K, V>> task = () -> node.transform(predicate, function, PARTITION_OFFSET, subObserver);
+                tasks.add(ForkJoinTask.adapt(task));
+            }
+            ForkJoinTask.invokeAll(tasks);
+
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Node<K, V>[] subNodes = new Node[getNodeArity()];
+
+            for (int i = 0; i < subNodes.length; i++) {
+                subNodes[i] = tasks.get(i).join();
+                observer.addDeleted(observers[i].getDeletedCount());
+            }
+            return rebuild(predicate, function, subNodes, observer);
+        }
+
+        /**
+         * Applies the predicate and the function to the inlined entries and assembles a node from
+         * them and the already transformed sub-nodes. Sub-nodes which became empty are dropped and
+         * single-entry sub-nodes are inlined. Returns {@code this} if nothing has changed.
+         */
+        private Node<K, V> rebuild(BiPredicate<? super K, ? super V> predicate,
+                                   BiFunction<? super K, ? super V, ? extends V> function,
+                                   Node<K, V>[] subNodes, Observer observer) {
+            Object[] payload = new Object[2 * (getPayloadArity() + getNodeArity())];
+            Object[] nodes = new Object[getNodeArity()];
+
+            int payloadMap = 0;
+            int nodeMap = 0;
+            int payloadArity = 0;
+            int nodeArity = 0;
+            boolean isChanged = false;
+
+            for (int bitmap = this.payloadMap | this.nodeMap; bitmap != 0; bitmap &= bitmap - 1) {
+                int bitPos = Integer.lowestOneBit(bitmap);
+
+                if ((bitPos & this.payloadMap) != 0) {
+                    int index = getIndex(this.payloadMap, bitPos);
+                    K key = getKey(index);
+                    V value = getValue(index);
+
+                    if (predicate != null && !predicate.test(key, value)) {
+                        observer.addDeleted(1);
+                        isChanged = true;
+                        continue;
+                    }
+
+                    V mapped = (function != null) ? function.apply(key, value) : value;
+                    isChanged |= mapped != value;
+
+                    payload[2 * payloadArity] = key;
+                    payload[2 * payloadArity++ + 1] = mapped;
+                    payloadMap |= bitPos;
+                } else {
+                    int index = getIndex(this.nodeMap, bitPos);
+                    Node<K, V> subNode = subNodes[index];
+                    isChanged |= subNode != getNode(index);
+
+                    switch (subNode.sizePredicate()) {
+                        case EMPTY:
+                            break;
+
+                        case ONE: {
+                            payload[2 * payloadArity] = subNode.getKey(0);
+                            payload[2 * payloadArity++ + 1] = subNode.getValue(0);
+                            payloadMap |= bitPos;
+                            break;
+                        }
+                        case MORE: {
+                            nodes[nodeArity++] = subNode;
+                            nodeMap |= bitPos;
+                        }
+                    }
+                }
+            }
+
+            if (!isChanged) {
+                return this;
+            }
+
+            Object[] contents = new Object[2 * payloadArity + nodeArity];
+            System.arraycopy(payload, 0, contents, 0, 2 * payloadArity);
+
+            for (int i = 0; i < nodeArity; i++) {
+                contents[contents.length - 1 - i] = nodes[i];
+            }
+            return new BitmapIndexedNode<>(nodeMap, payloadMap, contents);
+        }
+
+        @Override
+        int fieldBytes() {
+            return 2 * Integer.BYTES + REFERENCE_BYTES;
+        }
+
+        @Override
+        long shallowSize(Node<K, V> base, ToLongFunction<Object> sizeOf) {
+            return sizeOf.applyAsLong(this) + sizeOf.applyAsLong(contents);
+        }
+
+        @Override
+        int count() {
+            int count = getPayloadArity();
+
+            for (int i = 0; i < getNodeArity(); i++) {
+                count += getNode(i).count();
+            }
+            return count;
+        }
+
+        @Override
+        boolean isReplacedBy(Node<K, V> updated, int hash, int shift) {
+            if (!(updated instanceof BitmapIndexedNode)) {
+                return false;
+            }
+
+            BitmapIndexedNode<K, V> node = (BitmapIndexedNode<K, V>) updated;
+
+            if (nodeMap != node.nodeMap || payloadMap != node.payloadMap) {
+                return false;
+            }
+
+            int bitPos = getBitPosition(hash, shift);
+
+            if ((bitPos & nodeMap) == 0) {
+                return true;
+            }
+
+            int index = getIndex(nodeMap, bitPos);
+            return getNode(index).isReplacedBy(node.getNode(index), hash, shift + PARTITION_OFFSET);
+        }
+
+        /**
+         * Returns a node holding only the entries and sub-nodes whose bit positions are in the mask.
+         * Sub-nodes are shared with this node.
+         */
+        private BitmapIndexedNode<K, V> slice(int bitmask) {
+            int payloadMap = this.payloadMap & bitmask;
+            int nodeMap = this.nodeMap & bitmask;
+
+            if (payloadMap == this.payloadMap && nodeMap == this.nodeMap) {
+                return this;
+            }
+
+            int lowestBitPos = Integer.lowestOneBit(bitmask);
+            int payloadIndex = getIndex(this.payloadMap, lowestBitPos);
+            int nodeIndex = getIndex(this.nodeMap, lowestBitPos);
+
+            int payloadArity = Integer.bitCount(payloadMap);
+            int nodeArity = Integer.bitCount(nodeMap);
+
+            Object[] sliced = new Object[2 * payloadArity + nodeArity];
+            System.arraycopy(contents, 2 * payloadIndex, sliced, 0, 2 * payloadArity);
+            System.arraycopy(contents, contents.length - nodeIndex - nodeArity, sliced, 2 * payloadArity, nodeArity);
+
+            return new BitmapIndexedNode<>(nodeMap, payloadMap, sliced);
+        }
+
+        /**
+         * Merges nodes of the same level whose bit positions do not overlap. Only the references
+         * stored directly in the given nodes are copied.
+         */
+        private static <K, V> BitmapIndexedNode<K, V> join(List<BitmapIndexedNode<K, V>> nodes) {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            BitmapIndexedNode<K, V>[] owners = new BitmapIndexedNode[PARTITION_BITMASK + 1];
+
+            int payloadMap = 0;
+            int nodeMap = 0;
+
+            for (BitmapIndexedNode<K, V> node : nodes) {
+                int bitmap = node.payloadMap | node.nodeMap;
+
+                if ((bitmap & (payloadMap | nodeMap)) != 0) {
+                    throw new IllegalArgumentException("Shards overlap");
+                }
+
+                payloadMap |= node.payloadMap;
+                nodeMap |= node.nodeMap;
+
+                for (; bitmap != 0; bitmap &= bitmap - 1) {
+                    owners[Integer.numberOfTrailingZeros(bitmap)] = node;
+                }
+            }
+
+            Object[] contents = new Object[2 * Integer.bitCount(payloadMap) + Integer.bitCount(nodeMap)];
+            int payloadArity = 0;
+            int nodeArity = 0;
+
+            for (int bitmap = payloadMap | nodeMap; bitmap != 0; bitmap &= bitmap - 1) {
+                int bitPos = Integer.lowestOneBit(bitmap);
+                BitmapIndexedNode<K, V> owner = owners[Integer.numberOfTrailingZeros(bitPos)];
+
+                if ((bitPos & payloadMap) != 0) {
+                    int index = getIndex(owner.payloadMap, bitPos);
+
+                    contents[2 * payloadArity] = owner.getKey(index);
+                    contents[2 * payloadArity++ + 1] = owner.getValue(index);
+                } else {
+                    contents[contents.length - 1 - nodeArity++] = owner.getNode(getIndex(owner.nodeMap, bitPos));
+                }
+            }
+            return new BitmapIndexedNode<>(nodeMap, payloadMap, contents);
+        }
+
         private Object[] copyAndModifyContents(Operation operation, int bitPos) {
             int payloadIndex = 2 * getIndex(payloadMap, bitPos);
             int nodeIndex = contents.length - 2 - getIndex(nodeMap, bitPos);
@@ -362,6 +780,63 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
         }
     }
 
+    /**
+     * Returns the number of entries under the node, or some number above the limit once more than
+     * the limit have been counted.
+     */
+    private static int countUpTo(Node<?, ?> node, int limit) {
+        int count = node.getPayloadArity();
+
+        for (int i = 0; i < node.getNodeArity() && count <= limit; i++) {
+            count += countUpTo(node.getNode(i), limit - count);
+        }
+        return count;
+    }
+
+    /**
+     * Keys of interned nodes must be interchangeable, so equal keys of different classes are told
+     * apart.
+     */
+    private static boolean sameKey(Object key, Object other) {
+        return key == other
+                || (key != null && other != null && key.getClass() == other.getClass() && key.equals(other));
+    }
+
+    /**
+     * Compares the entries of two nodes without sub-nodes as sets of entries. Values are compared
+     * by reference, so interning never hands a map the value instances of another map.
+     */
+    private static boolean entriesEqual(Node<?, ?> node, Node<?, ?> other) {
+        if (node.getPayloadArity() != other.getPayloadArity()) {
+            return false;
+        }
+
+        for (int i = 0; i < node.getPayloadArity(); i++) {
+            int j = 0;
+
+            while (j < other.getPayloadArity() && !sameKey(node.getKey(i), other.getKey(j))) {
+                j++;
+            }
+
+            if (j == other.getPayloadArity() || node.getValue(i) != other.getValue(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash code of the entries of a node without sub-nodes which does not depend on their order.
+     */
+    private static int entriesHashCode(Node<?, ?> node) {
+        int hashCode = 0;
+
+        for (int i = 0; i < node.getPayloadArity(); i++) {
+            hashCode += Objects.hashCode(node.getKey(i)) ^ System.identityHashCode(node.getValue(i));
+        }
+        return hashCode;
+    }
+
     private static final class HashCollisionNode<K, V> extends Node<K, V> {
         private final K[] keys;
         private final V[] values;
@@ -396,6 +871,56 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
             return keys.length;
         }
 
+        @Override
+        Node<K, V> intern(NodeCanonicalizer canonicalizer) {
+            return canonicalizer.canonicalize(this);
+        }
+
+        @Override
+        int count() {
+            return keys.length;
+        }
+
+        @Override
+        boolean isReplacedBy(Node<K, V> updated, int hash, int shift) {
+            return (updated instanceof HashCollisionNode)
+                    && ((HashCollisionNode<K, V>) updated).keys.length == keys.length;
+        }
+
+        @Override
+        int fieldBytes() {
+            return 2 * REFERENCE_BYTES;
+        }
+
+        /**
+         * Replacing a value keeps the keys array, so it is not counted if the base node has it.
+         */
+        @Override
+        long shallowSize(Node<K, V> base, ToLongFunction<Object> sizeOf) {
+            long bytes = sizeOf.applyAsLong(this) + sizeOf.applyAsLong(values);
+
+            if (base instanceof HashCollisionNode && ((HashCollisionNode<K, V>) base).keys == keys) {
+                return bytes;
+            }
+            return bytes + sizeOf.applyAsLong(keys);
+        }
+
+        /**
+         * Entries are compared regardless of the order in which they have been inserted.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof HashCollisionNode)) return false;
+
+            return entriesEqual(this, (HashCollisionNode<?, ?>) o);
+        }
+
+        @Override
+        public int hashCode() {
+            return entriesHashCode(this);
+        }
+
         @Override
         boolean containsKey(K key, int hash, int shift) {
             for (int i = 0; i < getPayloadArity(); i++) {
@@ -418,17 +943,16 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
 
         @SuppressWarnings("unchecked")
         @Override
-        Node<K, V> insert(K key, V value, int hash, int shift, Observer observer) {
+        Node<K, V> insert(K key, V value, int hash, int shift) {
             for (int i = 0; i < getPayloadArity(); i++) {
                 if (keys[i].equals(key)) {
-                    if (values[i].equals(value)) {
+                    if (values[i] == value) {
                         return this;
                     } else {
                         V[] newValues = (V[]) new Object[getPayloadArity()];
                         System.arraycopy(this.values, 0, newValues, 0, getPayloadArity());
                         newValues[i] = value;
 
-                        observer.setReplaced();
                         return new HashCollisionNode<>(keys, newValues);
                     }
                 }
@@ -443,27 +967,24 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
             System.arraycopy(this.values, 0, values, 0, getPayloadArity());
             values[getPayloadArity()] = value;
 
-            observer.setModified();
             return new HashCollisionNode<>(keys, values);
         }
 
         @SuppressWarnings("unchecked")
         @Override
-        Node<K, V> delete(K key, int hash, int shift, Observer observer) {
+        Node<K, V> delete(K key, int hash, int shift) {
             for (int i = 0; i < getPayloadArity(); i++) {
                 if (keys[i].equals(key)) {
-                    observer.setModified();
-
                     if (getPayloadArity() == 1) {
-                        return new BitmapIndexedNode<>(0, 0, new Object[0]);
+                        return BitmapIndexedNode.empty();
                     }
 
                     if (getPayloadArity() == 2) {
                         K key1 = (i == 0) ? keys[1] : keys[0];
                         V value1 = (i == 0) ? values[1] : values[0];
 
-                        return (Node<K, V>) new BitmapIndexedNode<>(0, 0, new Object[0])
-                                .insert(key1, value1, key1.hashCode(), 0, observer);
+                        return BitmapIndexedNode.<K, V>empty()
+                                .insert(key1, value1, key1.hashCode(), 0);
                     }
 
                     K[] keys = (K[]) new Object[getPayloadArity() - 1];
@@ -479,159 +1000,874 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
             }
             return this;
         }
-    }
 
-    /* ------------- PersistentMap API ---------- */
+        @SuppressWarnings("unchecked")
+        @Override
+        Node<K, V> transform(BiPredicate<? super K, ? super V> predicate,
+                             BiFunction<? super K, ? super V, ? extends V> function,
+                             int shift, Observer observer) {
+            K[] keys = (K[]) new Object[getPayloadArity()];
+            V[] values = (V[]) new Object[getPayloadArity()];
 
-    @Override
-    public PersistentMap<K, V> insert(K k, V v) {
-        Observer observer = new Observer();
+            int arity = 0;
+            boolean isChanged = false;
 
-        Node<K, V> root = this.root.insert(k, v, Objects.hashCode(k), 0, observer);
+            for (int i = 0; i < getPayloadArity(); i++) {
+                if (predicate != null && !predicate.test(this.keys[i], this.values[i])) {
+                    observer.addDeleted(1);
+                    isChanged = true;
+                    continue;
+                }
 
-        return (observer.isModified())
-                ? new HashTrieMap<>(root, (!observer.isReplaced()) ? size + 1 : size)
-                : this;
-    }
+                V mapped = (function != null) ? function.apply(this.keys[i], this.values[i]) : this.values[i];
+                isChanged |= mapped != this.values[i];
 
-    @Override
-    public PersistentMap<K, V> delete(Object o) {
-        Observer observer = new Observer();
+                keys[arity] = this.keys[i];
+                values[arity++] = mapped;
+            }
 
-        @SuppressWarnings("unchecked")
-        Node<K, V> root = this.root.delete((K) o, Objects.hashCode(o), 0, observer);
+            if (!isChanged) {
+                return this;
+            }
 
-        return (!observer.isModified()) ? this : new HashTrieMap<>(root, size - 1);
-    }
+            switch (arity) {
+                case 0:
+                    return BitmapIndexedNode.empty();
+                case 1:
+                    return new BitmapIndexedNode<>(0, BitmapIndexedNode.getBitPosition(Objects.hashCode(keys[0]), 0),
+                            new Object[]{keys[0], values[0]});
+                default: {
+                    K[] trimmedKeys = (K[]) new Object[arity];
+                    V[] trimmedValues = (V[]) new Object[arity];
 
-    @Override
-    public PersistentMap<K, V> insertAll(Map<? extends K, ? extends V> map) {
-        PersistentMap<K, V> dst = new HashTrieMap<>();
+                    System.arraycopy(keys, 0, trimmedKeys, 0, arity);
+                    System.arraycopy(values, 0, trimmedValues, 0, arity);
 
-        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
-            dst = dst.insert(entry.getKey(), entry.getValue());
+                    return new HashCollisionNode<>(trimmedKeys, trimmedValues);
+                }
+            }
         }
-
-        return dst;
     }
 
-    /* ---------------- Iterators ---------------- */
-
-    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
-        private final Deque<Node<K, V>> nodes = new ArrayDeque<>();
-        private Node<K, V> currentPayloadNode = root;
+    /**
+     * Root of a map holding at most {@link #SMALL_MAP_THRESHOLD} entries: keys and values are
+     * interleaved in one array and looked up by a linear scan. Inserting past the threshold turns
+     * the root into a trie.
+     */
+    private static final class ArrayNode<K, V> extends Node<K, V> {
+        private static final ArrayNode<?, ?> EMPTY = new ArrayNode<>(new Object[0]);
 
-        private int currentEntryIndex;
-        private int currentNodeIndex;
+        private final Object[] contents;
 
-        private EntryIterator() {
-            nodes.push(root);
+        private ArrayNode(Object[] contents) {
+            this.contents = contents;
         }
 
-        private void advanceToNextPayloadNode() {
-            while (!nodes.isEmpty()) {
-                while (currentNodeIndex < nodes.getLast().getNodeArity()) {
-                    Node<K, V> next = nodes.getLast().getNode(currentNodeIndex++);
+        @SuppressWarnings("unchecked")
+        private static <K, V> ArrayNode<K, V> empty() {
+            return (ArrayNode<K, V>) EMPTY;
+        }
 
-                    if (next.getNodeArity() != 0) {
-                        nodes.push(next);
-                    }
+        private static <K, V> ArrayNode<K, V> flatten(Node<K, V> root, int size) {
+            Object[] contents = new Object[2 * size];
+            flatten(root, contents, 0);
 
-                    if (next.getPayloadArity() != 0) {
-                        currentPayloadNode = next;
-                        currentEntryIndex = 0;
+            return new ArrayNode<>(contents);
+        }
 
-                        return;
-                    }
-                }
-                nodes.removeLast();
-                currentNodeIndex = 0;
+        private static <K, V> int flatten(Node<K, V> node, Object[] contents, int offset) {
+            for (int i = 0; i < node.getPayloadArity(); i++) {
+                contents[offset++] = node.getKey(i);
+                contents[offset++] = node.getValue(i);
             }
-        }
 
-        @Override
-        public boolean hasNext() {
-            return currentEntryIndex < currentPayloadNode.getPayloadArity()
-                    || currentPayloadNode.getNodeArity() != 0;
+            for (int i = 0; i < node.getNodeArity(); i++) {
+                offset = flatten(node.getNode(i), contents, offset);
+            }
+            return offset;
         }
 
-        @Override
-        public Entry<K, V> next() {
-            if (!hasNext()) throw new NoSuchElementException();
+        private BitmapIndexedNode<K, V> toTrie() {
+            Node<K, V> root = BitmapIndexedNode.empty();
 
-            if (currentEntryIndex >= currentPayloadNode.getPayloadArity()) {
-                advanceToNextPayloadNode();
+            for (int i = 0; i < getPayloadArity(); i++) {
+                root = root.insert(getKey(i), getValue(i), Objects.hashCode(getKey(i)), 0);
             }
+            return (BitmapIndexedNode<K, V>) root;
+        }
 
-            return new AbstractMap.SimpleImmutableEntry<>(
-                    currentPayloadNode.getKey(currentEntryIndex),
-                    currentPayloadNode.getValue(currentEntryIndex++)
-            );
+        /**
+         * Returns a node holding only the entries whose top-level hash fragments are in the mask.
+         */
+        private ArrayNode<K, V> slice(int bitmask) {
+            return (ArrayNode<K, V>) transform(
+                    (k, v) -> (BitmapIndexedNode.getBitPosition(Objects.hashCode(k), 0) & bitmask) != 0,
+                    null, 0, new Observer());
         }
-    }
 
-    private class KeyIterator implements Iterator<K> {
-        private final Iterator<Map.Entry<K,V>> i = entrySet().iterator();
+        private int indexOf(Object key) {
+            for (int i = 0; i < contents.length; i += 2) {
+                if (Objects.equals(contents[i], key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
 
         @Override
-        public boolean hasNext() {
-            return i.hasNext();
+        Node<K, V> getNode(int index) {
+            throw new UnsupportedOperationException();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        K getKey(int index) {
+            return (K) contents[2 * index];
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        V getValue(int index) {
+            return (V) contents[2 * index + 1];
+        }
+
+        @Override
+        int getNodeArity() {
+            return 0;
+        }
+
+        @Override
+        int getPayloadArity() {
+            return contents.length / 2;
+        }
+
+        @Override
+        int count() {
+            return getPayloadArity();
+        }
+
+        @Override
+        boolean isReplacedBy(Node<K, V> updated, int hash, int shift) {
+            return (updated instanceof ArrayNode) && updated.getPayloadArity() == getPayloadArity();
+        }
+
+        @Override
+        int fieldBytes() {
+            return REFERENCE_BYTES;
+        }
+
+        @Override
+        long shallowSize(Node<K, V> base, ToLongFunction<Object> sizeOf) {
+            return sizeOf.applyAsLong(this) + sizeOf.applyAsLong(contents);
+        }
+
+        @Override
+        boolean containsKey(K key, int hash, int shift) {
+            return indexOf(key) >= 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        V find(K key, int hash, int shift) {
+            int index = indexOf(key);
+            return (index >= 0) ? (V) contents[index + 1] : null;
         }
 
         @Override
-        public K next() {
-            return i.next().getKey();
+        Node<K, V> insert(K key, V value, int hash, int shift) {
+            int index = indexOf(key);
+
+            if (index >= 0) {
+                if (contents[index + 1] == value) {
+                    return this;
+                }
+
+                Object[] modified = contents.clone();
+                modified[index + 1] = value;
+
+                return new ArrayNode<>(modified);
+            }
+
+            if (getPayloadArity() == SMALL_MAP_THRESHOLD) {
+                return toTrie().insert(key, value, hash, shift);
+            }
+
+            Object[] modified = new Object[contents.length + 2];
+            System.arraycopy(contents, 0, modified, 0, contents.length);
+            modified[contents.length] = key;
+            modified[contents.length + 1] = value;
+
+            return new ArrayNode<>(modified);
+        }
+
+        @Override
+        Node<K, V> delete(K key, int hash, int shift) {
+            int index = indexOf(key);
+
+            if (index < 0) {
+                return this;
+            }
+
+            Object[] modified = new Object[contents.length - 2];
+            System.arraycopy(contents, 0, modified, 0, index);
+            System.arraycopy(contents, index + 2, modified, index, contents.length - index - 2);
+
+            return new ArrayNode<>(modified);
+        }
+
+        @Override
+        Node<K, V> transform(BiPredicate<? super K, ? super V> predicate,
+                             BiFunction<? super K, ? super V, ? extends V> function,
+                             int shift, Observer observer) {
+            Object[] modified = new Object[contents.length];
+            int length = 0;
+            boolean isChanged = false;
+
+            for (int i = 0; i < getPayloadArity(); i++) {
+                K key = getKey(i);
+                V value = getValue(i);
+
+                if (predicate != null && !predicate.test(key, value)) {
+                    observer.addDeleted(1);
+                    isChanged = true;
+                    continue;
+                }
+
+                V mapped = (function != null) ? function.apply(key, value) : value;
+                isChanged |= mapped != value;
+
+                modified[length++] = key;
+                modified[length++] = mapped;
+            }
+
+            return (isChanged) ? new ArrayNode<>(Arrays.copyOf(modified, length)) : this;
+        }
+
+        @Override
+        Node<K, V> intern(NodeCanonicalizer canonicalizer) {
+            return canonicalizer.canonicalize(this);
+        }
+
+        /**
+         * Entries are kept in insertion order but compared regardless of it, so small maps holding
+         * the same entries are interned to one node.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ArrayNode)) return false;
+
+            return entriesEqual(this, (ArrayNode<?, ?>) o);
+        }
+
+        @Override
+        public int hashCode() {
+            return entriesHashCode(this);
         }
     }
 
-    /* ----------------- Map API ---------------- */
+    /* ------------- PersistentMap API ---------- */
+
+    @Override
+    public HashTrieMap<K, V> insert(K k, V v) {
+        int hash = Objects.hashCode(k);
+        Node<K, V> root = this.root.insert(k, v, hash, 0);
 
-    private EntrySet entrySet;
-    private KeySet keySet;
+        if (root == this.root) {
+            return this;
+        }
+
+        if (size == UNKNOWN_SIZE) {
+            return new HashTrieMap<>(root, UNKNOWN_SIZE);
+        }
+        return new HashTrieMap<>(root, (this.root.isReplacedBy(root, hash, 0)) ? size : size + 1);
+    }
 
     @Override
-    @NotNull
-    public Set<Entry<K, V>> entrySet() {
-        EntrySet es = entrySet;
-        return (es != null) ? es : (entrySet = new EntrySet());
+    public HashTrieMap<K, V> delete(Object o) {
+        @SuppressWarnings("unchecked")
+        Node<K, V> root = this.root.delete((K) o, Objects.hashCode(o), 0);
+
+        return (root == this.root) ? this : of(root, (size == UNKNOWN_SIZE) ? UNKNOWN_SIZE : size - 1);
     }
 
-    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+    @Override
+    public HashTrieMap<K, V> insertAll(Map<? extends K, ? extends V> map) {
+        HashTrieMap<K, V> dst = this;
+
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            dst = dst.insert(entry.getKey(), entry.getValue());
+        }
+
+        return dst;
+    }
+
+    @Override
+    public HashTrieMap<K, V> filter(BiPredicate<? super K, ? super V> predicate, boolean parallel) {
+        return transform(Objects.requireNonNull(predicate), null, parallel);
+    }
+
+    @Override
+    public HashTrieMap<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function,
+                                       boolean parallel) {
+        return transform(null, Objects.requireNonNull(function), parallel);
+    }
+
+    private HashTrieMap<K, V> transform(BiPredicate<? super K, ? super V> predicate,
+                                        BiFunction<? super K, ? super V, ? extends V> function,
+                                        boolean parallel) {
+        Observer observer = new Observer();
+
+        Node<K, V> root = (parallel)
+                ? this.root.parallelTransform(predicate, function, observer)
+                : this.root.transform(predicate, function, 0, observer);
+
+        if (root == this.root) {
+            return this;
+        }
+        return of(root, (size == UNKNOWN_SIZE) ? UNKNOWN_SIZE : size - observer.getDeletedCount());
+    }
+
+    @Override
+    public HashTrieMap<K, V> filter(BiPredicate<? super K, ? super V> predicate) {
+        return filter(predicate, false);
+    }
+
+    @Override
+    public HashTrieMap<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function) {
+        return mapValues(function, false);
+    }
+
+    @Override
+    public HashTrieMap<K, V> removeIf(BiPredicate<? super K, ? super V> predicate) {
+        return filter(predicate.negate(), false);
+    }
+
+    /**
+     * Splits the map into independent shards, each owning a contiguous range of the top-level hash
+     * fragments. The shards reuse the root's sub-nodes and are not counted: a shard walks its
+     * nodes to count its entries on the first call to {@link #size()}, so splitting only copies
+     * the references held by the root.
+     */
+    public List<HashTrieMap<K, V>> split(int shards) {
+        int fragments = BitmapIndexedNode.PARTITION_BITMASK + 1;
+
+        if (shards < 1 || shards > fragments) {
+            throw new IllegalArgumentException("shards must be in [1, " + fragments + "]: " + shards);
+        }
+
+        List<HashTrieMap<K, V>> result = new ArrayList<>(shards);
+
+        for (int i = 0; i < shards; i++) {
+            int from = i * fragments / shards;
+            int to = (i + 1) * fragments / shards;
+            int bitmask = (int) ((1L << to) - (1L << from));
+
+            Node<K, V> slice = (root instanceof ArrayNode)
+                    ? ((ArrayNode<K, V>) root).slice(bitmask)
+                    : ((BitmapIndexedNode<K, V>) root).slice(bitmask);
+
+            result.add((slice == root) ? this : of(slice, UNKNOWN_SIZE));
+        }
+        return result;
+    }
+
+    /**
+     * Rebuilds a map from shards whose top-level hash fragments do not overlap, such as the ones
+     * returned by {@link #split(int)}. Only the shards' roots are read; the map is counted lazily if
+     * any of the shards has not been counted yet.
+     *
+     * @throws IllegalArgumentException if two shards hold entries in the same top-level fragment
+     */
+    public static <K, V> HashTrieMap<K, V> join(Collection<? extends HashTrieMap<K, V>> shards) {
+        List<BitmapIndexedNode<K, V>> roots = new ArrayList<>(shards.size());
+        HashTrieMap<K, V> nonEmpty = null;
+        int size = 0;
+
+        for (HashTrieMap<K, V> shard : shards) {
+            if (!shard.isEmpty()) {
+                roots.add((shard.root instanceof ArrayNode)
+                        ? ((ArrayNode<K, V>) shard.root).toTrie()
+                        : (BitmapIndexedNode<K, V>) shard.root);
+                nonEmpty = shard;
+
+                int shardSize = shard.knownSize();
+                size = (size == UNKNOWN_SIZE || shardSize == UNKNOWN_SIZE) ? UNKNOWN_SIZE : size + shardSize;
+            }
+        }
+
+        switch (roots.size()) {
+            case 0:
+                return empty();
+            case 1:
+                return nonEmpty;
+            default:
+                return of(BitmapIndexedNode.join(roots), size);
+        }
+    }
+
+    /**
+     * Returns an equal map whose nodes are shared with every other map interned through the same
+     * canonicalizer. Only nodes holding the very same value instances are shared.
+     */
+    public HashTrieMap<K, V> intern(NodeCanonicalizer canonicalizer) {
+        Node<K, V> root = this.root.intern(Objects.requireNonNull(canonicalizer));
+
+        return (root == this.root) ? this : new HashTrieMap<>(root, size);
+    }
+
+    /* ------------------ Diffs ----------------- */
+
+    private static final class DiffBuilder<K, V> {
+        private HashTrieMap<K, V> added = empty();
+        private HashTrieMap<K, V> removed = empty();
+        private HashTrieMap<K, V> changed = empty();
+
+        private void added(K key, V value) {
+            added = added.insert(key, value);
+        }
+
+        private void removed(K key, V value) {
+            removed = removed.insert(key, value);
+        }
+
+        private void retained(K key, V oldValue, V newValue) {
+            if (!Objects.equals(oldValue, newValue)) {
+                changed = changed.insert(key, newValue);
+            }
+        }
+
+        private void addedAll(Node<K, V> node) {
+            forEachEntry(node, this::added);
+        }
+
+        private void removedAll(Node<K, V> node) {
+            forEachEntry(node, this::removed);
+        }
+    }
+
+    /**
+     * Returns the entries added, removed and changed on the way from this map to the given one.
+     * Subtrees the two maps share are skipped, so the cost is proportional to the size of the
+     * paths the maps do not have in common.
+     */
+    public MapDiff<K, V> diff(HashTrieMap<K, V> other) {
+        DiffBuilder<K, V> builder = new DiffBuilder<>();
+        diff(root, other.root, 0, builder);
+
+        return new MapDiff<>(builder.added, builder.removed, builder.changed);
+    }
+
+    private static <K, V> void diff(Node<K, V> oldNode, Node<K, V> newNode, int shift, DiffBuilder<K, V> builder) {
+        if (oldNode == newNode) {
+            return;
+        }
+
+        if (!(oldNode instanceof BitmapIndexedNode && newNode instanceof BitmapIndexedNode)) {
+            diffEntries(oldNode, newNode, shift, builder);
+            return;
+        }
+
+        BitmapIndexedNode<K, V> oldBitmapNode = (BitmapIndexedNode<K, V>) oldNode;
+        BitmapIndexedNode<K, V> newBitmapNode = (BitmapIndexedNode<K, V>) newNode;
+
+        int oldBitmap = oldBitmapNode.payloadMap | oldBitmapNode.nodeMap;
+        int newBitmap = newBitmapNode.payloadMap | newBitmapNode.nodeMap;
+
+        for (int bitmap = oldBitmap | newBitmap; bitmap != 0; bitmap &= bitmap - 1) {
+            int bitPos = Integer.lowestOneBit(bitmap);
+
+            if ((bitPos & oldBitmapNode.payloadMap & newBitmapNode.payloadMap) != 0) {
+                int oldIndex = BitmapIndexedNode.getIndex(oldBitmapNode.payloadMap, bitPos);
+                int newIndex = BitmapIndexedNode.getIndex(newBitmapNode.payloadMap, bitPos);
+
+                if (oldBitmapNode.getKey(oldIndex) == newBitmapNode.getKey(newIndex)
+                        && oldBitmapNode.getValue(oldIndex) == newBitmapNode.getValue(newIndex)) {
+                    continue;
+                }
+            }
+
+            Node<K, V> oldSubNode = subNodeAt(oldBitmapNode, bitPos);
+            Node<K, V> newSubNode = subNodeAt(newBitmapNode, bitPos);
+
+            if ((bitPos & oldBitmap) == 0) {
+                builder.addedAll(newSubNode);
+            } else if ((bitPos & newBitmap) == 0) {
+                builder.removedAll(oldSubNode);
+            } else {
+                diff(oldSubNode, newSubNode, shift + BitmapIndexedNode.PARTITION_OFFSET, builder);
+            }
+        }
+    }
+
+    /**
+     * Returns the sub-node at the bit position, wrapping an inlined entry in a single-entry node.
+     */
+    private static <K, V> Node<K, V> subNodeAt(BitmapIndexedNode<K, V> node, int bitPos) {
+        if ((bitPos & node.payloadMap) != 0) {
+            int index = BitmapIndexedNode.getIndex(node.payloadMap, bitPos);
+            return new ArrayNode<>(new Object[]{node.getKey(index), node.getValue(index)});
+        }
+
+        return ((bitPos & node.nodeMap) != 0)
+                ? node.getNode(BitmapIndexedNode.getIndex(node.nodeMap, bitPos))
+                : null;
+    }
+
+    private static <K, V> void diffEntries(Node<K, V> oldNode, Node<K, V> newNode, int shift,
+                                           DiffBuilder<K, V> builder) {
+        forEachEntry(oldNode, (k, v) -> {
+            int hash = Objects.hashCode(k);
+
+            if (newNode.containsKey(k, hash, shift)) {
+                builder.retained(k, v, newNode.find(k, hash, shift));
+            } else {
+                builder.removed(k, v);
+            }
+        });
+
+        forEachEntry(newNode, (k, v) -> {
+            if (!oldNode.containsKey(k, Objects.hashCode(k), shift)) {
+                builder.added(k, v);
+            }
+        });
+    }
+
+    private static <K, V> void forEachEntry(Node<K, V> node, BiConsumer<K, V> action) {
+        for (int i = 0; i < node.getPayloadArity(); i++) {
+            action.accept(node.getKey(i), node.getValue(i));
+        }
+
+        for (int i = 0; i < node.getNodeArity(); i++) {
+            forEachEntry(node.getNode(i), action);
+        }
+    }
+
+    /* -------------- Size estimates ------------- */
+
+    private static long objectSize(int fieldBytes) {
+        return align(OBJECT_HEADER_BYTES + fieldBytes);
+    }
+
+    private static long arraySize(int length) {
+        return align(ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES * length);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Returns the estimated size of a node or of an array owned by a node.
+     */
+    private static long estimatedSize(Object object) {
+        return (object instanceof Object[])
+                ? arraySize(((Object[]) object).length)
+                : objectSize(((Node<?, ?>) object).fieldBytes());
+    }
+
+    /**
+     * Returns the estimated number of bytes taken by the nodes of this map. Keys and values are
+     * not counted.
+     */
+    long estimatedBytes() {
+        return uniqueBytes(root, null, HashTrieMap::estimatedSize);
+    }
+
+    /**
+     * Returns the estimated number of bytes taken by the nodes of this map which are not shared
+     * with the given map. Shared subtrees are skipped, so the cost is proportional to the size of
+     * the paths the maps do not have in common.
+     */
+    long uniqueBytes(HashTrieMap<K, V> base) {
+        return uniqueBytes(root, base.root, HashTrieMap::estimatedSize);
+    }
+
+    /**
+     * Same as {@link #uniqueBytes(HashTrieMap)}, but each node and array is measured by the given
+     * function, so tools can report sizes for the actual object layout of the JVM.
+     */
+    long uniqueBytes(HashTrieMap<K, V> base, ToLongFunction<Object> sizeOf) {
+        return uniqueBytes(root, base.root, sizeOf);
+    }
+
+    private static <K, V> long uniqueBytes(Node<K, V> node, Node<K, V> base, ToLongFunction<Object> sizeOf) {
+        if (node == base) {
+            return 0;
+        }
+
+        long bytes = node.shallowSize(base, sizeOf);
+
+        if (!(node instanceof BitmapIndexedNode)) {
+            return bytes;
+        }
+
+        BitmapIndexedNode<K, V> bitmapNode = (BitmapIndexedNode<K, V>) node;
+        BitmapIndexedNode<K, V> bitmapBase = (base instanceof BitmapIndexedNode)
+                ? (BitmapIndexedNode<K, V>) base
+                : BitmapIndexedNode.empty();
+
+        int index = 0;
+
+        for (int bitmap = bitmapNode.nodeMap; bitmap != 0; bitmap &= bitmap - 1) {
+            int bitPos = Integer.lowestOneBit(bitmap);
+
+            Node<K, V> baseSubNode = ((bitPos & bitmapBase.nodeMap) != 0)
+                    ? bitmapBase.getNode(BitmapIndexedNode.getIndex(bitmapBase.nodeMap, bitPos))
+                    : null;
+
+            bytes += uniqueBytes(bitmapNode.getNode(index++), baseSubNode, sizeOf);
+        }
+        return bytes;
+    }
+
+    /* ----------------- Cursors ----------------- */
+
+    /**
+     * Position of an entry in a particular map, used to resume {@link #page(Cursor, int)}. It is
+     * encoded in a single {@code long}: the hash fragments leading from the root to the node
+     * holding the entry, the depth of that node and the index of the entry within it.
+     * <p>
+     * A cursor is only meaningful for the snapshot it was obtained from.
+     */
+    public static final class Cursor implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private static final int INDEX_BITS = 29;
+        private static final int DEPTH_BITS = 3;
+
+        public static final Cursor START = new Cursor(0L);
+        public static final Cursor END = new Cursor(-1L);
+
+        private final long position;
+
+        private Cursor(long position) {
+            this.position = position;
+        }
+
+        private Cursor(int hashPrefix, int depth, int index) {
+            this(((long) hashPrefix << (DEPTH_BITS + INDEX_BITS)) | ((long) depth << INDEX_BITS) | index);
+        }
+
+        public static Cursor fromLong(long position) {
+            return (position == START.position) ? START : (position == END.position) ? END : new Cursor(position);
+        }
+
+        public long toLong() {
+            return position;
+        }
+
+        public boolean isEnd() {
+            return position == END.position;
+        }
+
+        private int hashPrefix() {
+            return (int) (position >>> (DEPTH_BITS + INDEX_BITS));
+        }
+
+        private int depth() {
+            return (int) (position >>> INDEX_BITS) & ((1 << DEPTH_BITS) - 1);
+        }
+
+        private int index() {
+            return (int) position & ((1 << INDEX_BITS) - 1);
+        }
+
         @Override
-        @NotNull
-        public Iterator<Entry<K, V>> iterator() {
-            return new EntryIterator();
+        public boolean equals(Object o) {
+            return this == o || (o instanceof Cursor && position == ((Cursor) o).position);
         }
 
         @Override
-        public int size() {
-            return HashTrieMap.this.size();
+        public int hashCode() {
+            return Long.hashCode(position);
         }
 
         @Override
-        public boolean contains(Object o) {
-            if (!(o instanceof Map.Entry)) return false;
+        public String toString() {
+            return (isEnd()) ? "Cursor{END}" : "Cursor{" + Long.toHexString(position) + '}';
+        }
+    }
 
-            Map.Entry<?,?> entry = (Entry<?, ?>) o;
-            Object value = HashTrieMap.this.get(entry.getKey());
+    public static final class Page<K, V> {
+        private final List<Map.Entry<K, V>> entries;
+        private final Cursor next;
 
-            return HashTrieMap.this.containsKey(entry.getKey())
-                    && Objects.equals(entry.getValue(), value);
+        private Page(List<Map.Entry<K, V>> entries, Cursor next) {
+            this.entries = entries;
+            this.next = next;
+        }
+
+        public List<Map.Entry<K, V>> entries() {
+            return entries;
+        }
+
+        public Cursor next() {
+            return next;
+        }
+
+        public boolean hasNext() {
+            return !next.isEnd();
         }
     }
 
+    /**
+     * Returns up to {@code limit} entries starting at the cursor together with the cursor of the
+     * entry following them, or {@link Cursor#END} if there are none. Resuming costs a single
+     * descent along the cursor's hash path, so every page takes time proportional to its size.
+     *
+     * @throws IllegalArgumentException if the cursor does not point into this map
+     */
+    public Page<K, V> page(Cursor cursor, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit < 0: " + limit);
+        }
+
+        if (cursor.isEnd()) {
+            return new Page<>(List.of(), Cursor.END);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node<K, V>[] nodes = new Node[MAX_DEPTH];
+        int[] remainingNodeMaps = new int[MAX_DEPTH];
+
+        int hashPrefix = cursor.hashPrefix();
+        int depth = cursor.depth();
+        int entryIndex = cursor.index();
+
+        nodes[0] = root;
+
+        for (int i = 0; i < depth; i++) {
+            int bitPos = BitmapIndexedNode.getBitPosition(hashPrefix, i * BitmapIndexedNode.PARTITION_OFFSET);
+            int nodeMap = nodeMap(nodes[i]);
+
+            if ((bitPos & nodeMap) == 0) {
+                throw new IllegalArgumentException("Cursor does not belong to this map: " + cursor);
+            }
+
+            remainingNodeMaps[i] = nodeMap & ~((bitPos << 1) - 1);
+            nodes[i + 1] = nodes[i].getNode(BitmapIndexedNode.getIndex(nodeMap, bitPos));
+        }
+
+        if (entryIndex > nodes[depth].getPayloadArity()) {
+            throw new IllegalArgumentException("Cursor does not belong to this map: " + cursor);
+        }
+        remainingNodeMaps[depth] = nodeMap(nodes[depth]);
+
+        List<Map.Entry<K, V>> entries = new ArrayList<>(Math.min(limit, (size == UNKNOWN_SIZE) ? PAGE_CAPACITY : size));
+
+        while (true) {
+            Node<K, V> node = nodes[depth];
+
+            if (entryIndex < node.getPayloadArity()) {
+                if (entries.size() == limit) {
+                    return new Page<>(entries, new Cursor(hashPrefix, depth, entryIndex));
+                }
+
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(node.getKey(entryIndex), node.getValue(entryIndex)));
+                entryIndex++;
+                continue;
+            }
+
+            while (depth >= 0 && remainingNodeMaps[depth] == 0) {
+                depth--;
+            }
+
+            if (depth < 0) {
+                return new Page<>(entries, Cursor.END);
+            }
+
+            int bitPos = Integer.lowestOneBit(remainingNodeMaps[depth]);
+            int shift = depth * BitmapIndexedNode.PARTITION_OFFSET;
+
+            remainingNodeMaps[depth] ^= bitPos;
+            hashPrefix = (hashPrefix & ((1 << shift) - 1)) | (Integer.numberOfTrailingZeros(bitPos) << shift);
+
+            Node<K, V> subNode = nodes[depth].getNode(BitmapIndexedNode.getIndex(nodeMap(nodes[depth]), bitPos));
+
+            nodes[++depth] = subNode;
+            remainingNodeMaps[depth] = nodeMap(subNode);
+            entryIndex = 0;
+        }
+    }
+
+    private static int nodeMap(Node<?, ?> node) {
+        return (node instanceof BitmapIndexedNode) ? ((BitmapIndexedNode<?, ?>) node).nodeMap : 0;
+    }
+
+    /* ---------------- Iterators ---------------- */
+
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final Node<K, V>[] nodes = new Node[MAX_DEPTH];
+        private final int[] nodeIndexes = new int[MAX_DEPTH];
+        private int depth = -1;
+
+        private Node<K, V> currentPayloadNode = root;
+        private int currentEntryIndex;
+
+        private EntryIterator() {
+            if (root.getNodeArity() != 0) {
+                nodes[++depth] = root;
+            }
+        }
+
+        private boolean advanceToNextPayloadNode() {
+            while (depth >= 0) {
+                if (nodeIndexes[depth] < nodes[depth].getNodeArity()) {
+                    Node<K, V> next = nodes[depth].getNode(nodeIndexes[depth]++);
+
+                    if (next.getNodeArity() != 0) {
+                        nodes[++depth] = next;
+                        nodeIndexes[depth] = 0;
+                    }
+
+                    if (next.getPayloadArity() != 0) {
+                        currentPayloadNode = next;
+                        currentEntryIndex = 0;
+
+                        return true;
+                    }
+                } else {
+                    nodes[depth--] = null;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return currentEntryIndex < currentPayloadNode.getPayloadArity() || advanceToNextPayloadNode();
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            return new AbstractMap.SimpleImmutableEntry<>(
+                    currentPayloadNode.getKey(currentEntryIndex),
+                    currentPayloadNode.getValue(currentEntryIndex++)
+            );
+        }
+    }
+
+    /* ----------------- Map API ---------------- */
+
+    /**
+     * Returns a new view on every call rather than caching it, which would cost every version of
+     * the map a field. {@link #keySet()} is cached by {@link AbstractMap}.
+     */
     @Override
     @NotNull
-    public Set<K> keySet() {
-        KeySet ks = keySet;
-        return (ks != null) ? ks : (keySet = new KeySet());
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
     }
 
-    private class KeySet extends AbstractSet<K> {
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
         @Override
         @NotNull
-        public Iterator<K> iterator() {
-            return new KeyIterator();
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
         }
 
         @Override
@@ -641,7 +1877,13 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
 
         @Override
         public boolean contains(Object o) {
-            return HashTrieMap.this.containsKey(o);
+            if (!(o instanceof Map.Entry)) return false;
+
+            Map.Entry<?,?> entry = (Entry<?, ?>) o;
+            Object value = HashTrieMap.this.get(entry.getKey());
+
+            return HashTrieMap.this.containsKey(entry.getKey())
+                    && Objects.equals(entry.getValue(), value);
         }
     }
 
@@ -657,8 +1899,34 @@ public class HashTrieMap<K, V> extends AbstractPersistentMap<K, V>
         return root.find((K) key, Objects.hashCode(key), 0);
     }
 
+    /**
+     * Counts the entries of a shard on the first call. Racing threads count the same number, and
+     * a thread which does not see the cached count counts again, so the cache needs no
+     * synchronization.
+     */
     @Override
     public int size() {
-        return size;
+        if (size != UNKNOWN_SIZE) {
+            return size;
+        }
+
+        int count = countedSize;
+
+        if (count == 0) {
+            countedSize = count = root.count();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of entries if it is known without counting, or {@link #UNKNOWN_SIZE}.
+     */
+    private int knownSize() {
+        return (size != UNKNOWN_SIZE || countedSize == 0) ? size : countedSize;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return root.getPayloadArity() == 0 && root.getNodeArity() == 0;
     }
 }
\ No newline at end of file
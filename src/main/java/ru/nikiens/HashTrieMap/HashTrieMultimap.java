@@ -0,0 +1,211 @@
+package ru.nikiens.HashTrieMap;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Persistent multimap stored in a single {@link HashTrieMap}. A key bound to one value keeps the
+ * value inline in the trie; only keys bound to several values get a nested persistent set.
+ */
+public final class HashTrieMultimap<K, V> implements PersistentMultimap<K, V> {
+    private static final HashTrieMultimap<?, ?> EMPTY = new HashTrieMultimap<>(HashTrieMap.empty(), 0);
+
+    private final HashTrieMap<K, Object> map;
+    private final int size;
+
+    private HashTrieMultimap(HashTrieMap<K, Object> map, int size) {
+        this.map = map;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> HashTrieMultimap<K, V> empty() {
+        return (HashTrieMultimap<K, V>) EMPTY;
+    }
+
+    /**
+     * Values of a key bound to more than one value. Being private, it can never be confused with
+     * an inlined value.
+     */
+    private static final class ValueSet<V> {
+        private final HashTrieMap<V, Boolean> values;
+
+        private ValueSet(HashTrieMap<V, Boolean> values) {
+            this.values = values;
+        }
+    }
+
+    private static <K, V> HashTrieMultimap<K, V> of(HashTrieMap<K, Object> map, int size) {
+        return (size == 0) ? empty() : new HashTrieMultimap<>(map, size);
+    }
+
+    /* ------------- PersistentMultimap API ---------- */
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public HashTrieMultimap<K, V> insert(K key, V value) {
+        if (!map.containsKey(key)) {
+            return new HashTrieMultimap<>(map.insert(key, value), size + 1);
+        }
+
+        Object current = map.get(key);
+
+        if (current instanceof ValueSet) {
+            HashTrieMap<V, Boolean> values = ((ValueSet<V>) current).values;
+
+            return (values.containsKey(value))
+                    ? this
+                    : new HashTrieMultimap<>(map.insert(key, new ValueSet<>(values.insert(value, Boolean.TRUE))), size + 1);
+        }
+
+        if (Objects.equals(current, value)) {
+            return this;
+        }
+
+        HashTrieMap<V, Boolean> values = HashTrieMap.<V, Boolean>empty()
+                .insert((V) current, Boolean.TRUE)
+                .insert(value, Boolean.TRUE);
+
+        return new HashTrieMultimap<>(map.insert(key, new ValueSet<>(values)), size + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public HashTrieMultimap<K, V> delete(Object key, Object value) {
+        if (!containsEntry(key, value)) {
+            return this;
+        }
+
+        Object current = map.get(key);
+
+        if (!(current instanceof ValueSet)) {
+            return of(map.delete(key), size - 1);
+        }
+
+        HashTrieMap<V, Boolean> values = ((ValueSet<V>) current).values.delete(value);
+
+        Object remaining = (values.size() == 1)
+                ? values.keySet().iterator().next()
+                : new ValueSet<>(values);
+
+        return new HashTrieMultimap<>(map.insert((K) key, remaining), size - 1);
+    }
+
+    @Override
+    public HashTrieMultimap<K, V> deleteAll(Object key) {
+        if (!map.containsKey(key)) {
+            return this;
+        }
+
+        return of(map.delete(key), size - get(key).size());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Set<V> get(Object key) {
+        if (!map.containsKey(key)) {
+            return Collections.emptySet();
+        }
+
+        Object current = map.get(key);
+
+        return (current instanceof ValueSet)
+                ? ((ValueSet<V>) current).values.keySet()
+                : Collections.singleton((V) current);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean containsEntry(Object key, Object value) {
+        if (!map.containsKey(key)) {
+            return false;
+        }
+
+        Object current = map.get(key);
+
+        return (current instanceof ValueSet)
+                ? ((ValueSet<V>) current).values.containsKey(value)
+                : Objects.equals(current, value);
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return map.keySet();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (Map.Entry<K, Object> entry : map.entrySet()) {
+            if (entry.getValue() instanceof ValueSet) {
+                for (V value : ((ValueSet<V>) entry.getValue()).values.keySet()) {
+                    action.accept(entry.getKey(), value);
+                }
+            } else {
+                action.accept(entry.getKey(), (V) entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /* ----------------- Object API ---------------- */
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PersistentMultimap)) return false;
+
+        PersistentMultimap<?, ?> multimap = (PersistentMultimap<?, ?>) o;
+
+        if (size != multimap.size() || !keySet().equals(multimap.keySet())) {
+            return false;
+        }
+
+        for (K key : keySet()) {
+            if (!get(key).equals(multimap.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 0;
+
+        for (K key : keySet()) {
+            hashCode += Objects.hashCode(key) ^ get(key).hashCode();
+        }
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+
+        for (K key : keySet()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(key).append('=').append(get(key));
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,244 @@
+package ru.nikiens.HashTrieMap;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * Persistent map with secondary indexes over its values. Every index maps the attribute extracted
+ * from a value to the keys holding such values and is kept in a {@link HashTrieMultimap}, so the
+ * indexes are updated along with each change and share their structure across versions just like
+ * the map itself.
+ * <p>
+ * Bulk transforms update the indexes from the {@link MapDiff} of the old and new map rather than
+ * by rebuilding them.
+ */
+public final class IndexedMap<K, V> extends AbstractPersistentMap<K, V>
+        implements PersistentMap<K, V> {
+
+    private static final IndexedMap<?, ?> EMPTY = new IndexedMap<>(HashTrieMap.empty(), HashTrieMap.empty());
+
+    private final HashTrieMap<K, V> map;
+    private final HashTrieMap<Index<? super V, ?>, HashTrieMultimap<Object, K>> indexes;
+
+    private IndexedMap(HashTrieMap<K, V> map, HashTrieMap<Index<? super V, ?>, HashTrieMultimap<Object, K>> indexes) {
+        this.map = map;
+        this.indexes = indexes;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> IndexedMap<K, V> empty() {
+        return (IndexedMap<K, V>) EMPTY;
+    }
+
+    public static <K, V> IndexedMap<K, V> of(HashTrieMap<K, V> map) {
+        return new IndexedMap<>(Objects.requireNonNull(map), HashTrieMap.empty());
+    }
+
+    /**
+     * Handle of a secondary index. Indexes are told apart by identity, so the same handle must be
+     * used to define an index and to query it.
+     */
+    public static final class Index<V, I> {
+        private final Function<? super V, ? extends I> extractor;
+
+        private Index(Function<? super V, ? extends I> extractor) {
+            this.extractor = extractor;
+        }
+
+        public static <V, I> Index<V, I> of(Function<? super V, ? extends I> extractor) {
+            return new Index<>(Objects.requireNonNull(extractor));
+        }
+
+        private I extract(V value) {
+            return extractor.apply(value);
+        }
+    }
+
+    /* ------------- Indexes ---------- */
+
+    /**
+     * Returns a map with the index built over the current entries. Later versions derived from the
+     * returned map keep the index up to date.
+     */
+    public IndexedMap<K, V> withIndex(Index<? super V, ?> index) {
+        if (indexes.containsKey(Objects.requireNonNull(index))) {
+            return this;
+        }
+
+        HashTrieMultimap<Object, K> entries = HashTrieMultimap.empty();
+
+        for (Entry<K, V> entry : map.entrySet()) {
+            entries = entries.insert(index.extract(entry.getValue()), entry.getKey());
+        }
+
+        return new IndexedMap<>(map, indexes.insert(index, entries));
+    }
+
+    public IndexedMap<K, V> withoutIndex(Index<? super V, ?> index) {
+        HashTrieMap<Index<? super V, ?>, HashTrieMultimap<Object, K>> indexes = this.indexes.delete(index);
+
+        return (indexes == this.indexes) ? this : new IndexedMap<>(map, indexes);
+    }
+
+    /**
+     * Returns the keys whose values have the given attribute.
+     *
+     * @throws IllegalArgumentException if the index is not defined on this map
+     */
+    public <I> Set<K> lookup(Index<? super V, I> index, I attribute) {
+        if (!indexes.containsKey(index)) {
+            throw new IllegalArgumentException("Index is not defined");
+        }
+
+        return indexes.get(index).get(attribute);
+    }
+
+    public HashTrieMap<K, V> map() {
+        return map;
+    }
+
+    /**
+     * Moves the key from the attribute of the old value to the attribute of the new value in
+     * every index. An absent value is passed as {@code null} with its flag cleared. Indexes in
+     * which both values have the same attribute are left as they are.
+     */
+    private HashTrieMap<Index<? super V, ?>, HashTrieMultimap<Object, K>> reindex(
+            HashTrieMap<Index<? super V, ?>, HashTrieMultimap<Object, K>> indexes,
+            K key, V oldValue, boolean wasPresent, V newValue, boolean isPresent) {
+
+        for (Entry<Index<? super V, ?>, HashTrieMultimap<Object, K>> entry : indexes.entrySet()) {
+            Index<? super V, ?> index = entry.getKey();
+            HashTrieMultimap<Object, K> entries = entry.getValue();
+
+            Object oldAttribute = wasPresent ? index.extract(oldValue) : null;
+            Object newAttribute = isPresent ? index.extract(newValue) : null;
+
+            if (wasPresent && isPresent && Objects.equals(oldAttribute, newAttribute)) {
+                continue;
+            }
+
+            if (wasPresent) {
+                entries = entries.delete(oldAttribute, key);
+            }
+
+            if (isPresent) {
+                entries = entries.insert(newAttribute, key);
+            }
+
+            if (entries != entry.getValue()) {
+                indexes = indexes.insert(index, entries);
+            }
+        }
+        return indexes;
+    }
+
+    private IndexedMap<K, V> update(HashTrieMap<K, V> map) {
+        if (map == this.map) {
+            return this;
+        }
+
+        MapDiff<K, V> diff = this.map.diff(map);
+        HashTrieMap<Index<? super V, ?>, HashTrieMultimap<Object, K>> indexes = this.indexes;
+
+        for (Entry<K, V> entry : diff.removed().entrySet()) {
+            indexes = reindex(indexes, entry.getKey(), entry.getValue(), true, null, false);
+        }
+
+        for (Entry<K, V> entry : diff.changed().entrySet()) {
+            indexes = reindex(indexes, entry.getKey(), this.map.get(entry.getKey()), true, entry.getValue(), true);
+        }
+
+        for (Entry<K, V> entry : diff.added().entrySet()) {
+            indexes = reindex(indexes, entry.getKey(), null, false, entry.getValue(), true);
+        }
+        return new IndexedMap<>(map, indexes);
+    }
+
+    /* ------------- PersistentMap API ---------- */
+
+    @Override
+    public IndexedMap<K, V> insert(K k, V v) {
+        HashTrieMap<K, V> map = this.map.insert(k, v);
+
+        if (map == this.map) {
+            return this;
+        }
+
+        return new IndexedMap<>(map, reindex(indexes, k, this.map.get(k), this.map.containsKey(k), v, true));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public IndexedMap<K, V> delete(Object o) {
+        HashTrieMap<K, V> map = this.map.delete(o);
+
+        return (map == this.map)
+                ? this
+                : new IndexedMap<>(map, reindex(indexes, (K) o, this.map.get(o), true, null, false));
+    }
+
+    @Override
+    public IndexedMap<K, V> insertAll(Map<? extends K, ? extends V> map) {
+        IndexedMap<K, V> dst = this;
+
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            dst = dst.insert(entry.getKey(), entry.getValue());
+        }
+
+        return dst;
+    }
+
+    @Override
+    public IndexedMap<K, V> filter(BiPredicate<? super K, ? super V> predicate, boolean parallel) {
+        return update(map.filter(predicate, parallel));
+    }
+
+    @Override
+    public IndexedMap<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function, boolean parallel) {
+        return update(map.mapValues(function, parallel));
+    }
+
+    @Override
+    public IndexedMap<K, V> filter(BiPredicate<? super K, ? super V> predicate) {
+        return filter(predicate, false);
+    }
+
+    @Override
+    public IndexedMap<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function) {
+        return mapValues(function, false);
+    }
+
+    @Override
+    public IndexedMap<K, V> removeIf(BiPredicate<? super K, ? super V> predicate) {
+        return filter(predicate.negate(), false);
+    }
+
+    /* ----------------- Map API ---------------- */
+
+    @Override
+    @NotNull
+    public Set<Entry<K, V>> entrySet() {
+        return map.entrySet();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        return map.get(key);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+}
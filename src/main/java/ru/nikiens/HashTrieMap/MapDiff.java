@@ -0,0 +1,56 @@
+package ru.nikiens.HashTrieMap;
+
+import java.util.Objects;
+
+/**
+ * Difference between two versions of a map: entries only present in the newer one, entries only
+ * present in the older one with their old values, and entries whose value has changed with their
+ * new values.
+ */
+public final class MapDiff<K, V> {
+    private final PersistentMap<K, V> added;
+    private final PersistentMap<K, V> removed;
+    private final PersistentMap<K, V> changed;
+
+    MapDiff(PersistentMap<K, V> added, PersistentMap<K, V> removed, PersistentMap<K, V> changed) {
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    public PersistentMap<K, V> added() {
+        return added;
+    }
+
+    public PersistentMap<K, V> removed() {
+        return removed;
+    }
+
+    public PersistentMap<K, V> changed() {
+        return changed;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MapDiff)) return false;
+
+        MapDiff<?, ?> diff = (MapDiff<?, ?>) o;
+
+        return added.equals(diff.added) && removed.equals(diff.removed) && changed.equals(diff.changed);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(added, removed, changed);
+    }
+
+    @Override
+    public String toString() {
+        return "MapDiff{added=" + added + ", removed=" + removed + ", changed=" + changed + '}';
+    }
+}
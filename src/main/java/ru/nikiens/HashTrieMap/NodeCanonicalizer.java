@@ -0,0 +1,39 @@
+package ru.nikiens.HashTrieMap;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Weak table of trie nodes used by {@link HashTrieMap#intern(NodeCanonicalizer)} to store
+ * structurally equal subtrees once. Nodes are interned bottom-up, so each node is hashed and
+ * compared only against its own entries and the identities of its already interned sub-nodes,
+ * which keeps interning linear in the number of nodes.
+ * <p>
+ * Nodes are equal only if they hold the same value instances and keys of the same classes, so an
+ * interned map never receives the values of another map. Nodes no longer used by any map are
+ * dropped from the table by the garbage collector.
+ */
+public final class NodeCanonicalizer {
+    private final Map<Object, WeakReference<Object>> nodes = new WeakHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    synchronized <T> T canonicalize(T node) {
+        WeakReference<Object> reference = nodes.get(node);
+        Object canonical = (reference != null) ? reference.get() : null;
+
+        if (canonical != null) {
+            return (T) canonical;
+        }
+
+        nodes.put(node, new WeakReference<>(node));
+        return node;
+    }
+
+    /**
+     * Returns the number of distinct nodes currently held by the table.
+     */
+    public synchronized int size() {
+        return nodes.size();
+    }
+}
@@ -0,0 +1,24 @@
+package ru.nikiens.HashTrieMap;
+
+public interface PersistentBiMap<K, V> extends PersistentMap<K, V> {
+
+    /**
+     * @throws IllegalArgumentException if the value is already bound to another key
+     */
+    @Override
+    PersistentBiMap<K, V> insert(K k, V v);
+
+    /**
+     * Inserts the entry, silently removing the entry the value was bound to before, if any.
+     */
+    PersistentBiMap<K, V> forceInsert(K k, V v);
+
+    @Override
+    PersistentBiMap<K, V> delete(Object o);
+
+    /**
+     * Returns the view of this map with keys and values swapped. It shares its structure with
+     * this map.
+     */
+    PersistentBiMap<V, K> inverse();
+}
@@ -0,0 +1,454 @@
+package ru.nikiens.HashTrieMap;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Immutable cache bounded by size or weight with least-recently-used eviction. Every update and
+ * every {@link #lookup(Object)} returns a new snapshot, so readers of a snapshot never block.
+ * <p>
+ * Recency is tracked by a doubly linked list threaded through the entries: each entry holds the
+ * keys of its neighbours, and the snapshot holds the keys of the least and the most recently used
+ * entries. Moving or removing an entry rewrites only the entry and its neighbours, so every
+ * operation costs a constant number of trie updates and shares the rest of the structure with
+ * the snapshot it was applied to.
+ * <p>
+ * {@link #get(Object)} is a plain read which neither refreshes recency nor records statistics.
+ */
+public final class PersistentCache<K, V> extends AbstractPersistentMap<K, V>
+        implements PersistentMap<K, V> {
+
+    /**
+     * Marks the ends of the recency list. Keys may be {@code null}, so it cannot mark them.
+     */
+    private static final Object NONE = new Object();
+
+    private final PersistentMap<K, CacheEntry<V>> entries;
+
+    private final Object eldest;
+    private final Object newest;
+
+    private final long weight;
+    private final long maximumWeight;
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+
+    private final Stats stats;
+
+    private PersistentCache(PersistentMap<K, CacheEntry<V>> entries, Object eldest, Object newest,
+                            long weight, long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher,
+                            Stats stats) {
+        this.entries = entries;
+        this.eldest = eldest;
+        this.newest = newest;
+        this.weight = weight;
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.stats = stats;
+    }
+
+    public static <K, V> PersistentCache<K, V> withMaximumSize(long maximumSize) {
+        return withMaximumWeight(maximumSize, (k, v) -> 1);
+    }
+
+    public static <K, V> PersistentCache<K, V> withMaximumWeight(long maximumWeight,
+                                                                 ToIntBiFunction<? super K, ? super V> weigher) {
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("maximumWeight < 0");
+        }
+
+        return new PersistentCache<>(HashTrieMap.empty(), NONE, NONE, 0,
+                maximumWeight, Objects.requireNonNull(weigher), Stats.EMPTY);
+    }
+
+    private static final class CacheEntry<V> {
+        private final V value;
+        private final int weight;
+
+        /**
+         * Keys of the entries used just before and just after this one, or {@link #NONE}.
+         */
+        private final Object previous;
+        private final Object next;
+
+        private CacheEntry(V value, int weight, Object previous, Object next) {
+            this.value = value;
+            this.weight = weight;
+            this.previous = previous;
+            this.next = next;
+        }
+
+        private CacheEntry<V> withPrevious(Object previous) {
+            return new CacheEntry<>(value, weight, previous, next);
+        }
+
+        private CacheEntry<V> withNext(Object next) {
+            return new CacheEntry<>(value, weight, previous, next);
+        }
+    }
+
+    public static final class Stats {
+        private static final Stats EMPTY = new Stats(0, 0, 0);
+
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+
+        private Stats(long hitCount, long missCount, long evictionCount) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+        }
+
+        public long hitCount() {
+            return hitCount;
+        }
+
+        public long missCount() {
+            return missCount;
+        }
+
+        public long evictionCount() {
+            return evictionCount;
+        }
+
+        public double hitRate() {
+            long requestCount = hitCount + missCount;
+            return (requestCount == 0) ? 1.0 : (double) hitCount / requestCount;
+        }
+
+        private Stats recordHit() {
+            return new Stats(hitCount + 1, missCount, evictionCount);
+        }
+
+        private Stats recordMiss() {
+            return new Stats(hitCount, missCount + 1, evictionCount);
+        }
+
+        private Stats recordEvictions(long count) {
+            return (count == 0) ? this : new Stats(hitCount, missCount, evictionCount + count);
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hitCount=" + hitCount + ", missCount=" + missCount
+                    + ", evictionCount=" + evictionCount + '}';
+        }
+    }
+
+    /**
+     * Result of {@link #lookup(Object)}: the cached value, if any, and the snapshot in which the
+     * access has been recorded.
+     */
+    public static final class Lookup<K, V> {
+        private final PersistentCache<K, V> cache;
+        private final V value;
+        private final boolean isHit;
+
+        private Lookup(PersistentCache<K, V> cache, V value, boolean isHit) {
+            this.cache = cache;
+            this.value = value;
+            this.isHit = isHit;
+        }
+
+        public PersistentCache<K, V> cache() {
+            return cache;
+        }
+
+        public V value() {
+            return value;
+        }
+
+        public boolean isHit() {
+            return isHit;
+        }
+    }
+
+    /* ------------- Cache API ---------- */
+
+    public Lookup<K, V> lookup(K key) {
+        CacheEntry<V> entry = entries.get(key);
+
+        if (entry == null) {
+            PersistentCache<K, V> cache = new PersistentCache<>(entries, eldest, newest,
+                    weight, maximumWeight, weigher, stats.recordMiss());
+
+            return new Lookup<>(cache, null, false);
+        }
+
+        Editor editor = new Editor(entries, weight);
+
+        if (entry.next != NONE) {
+            editor.remove(key);
+            editor.append(key, entry.value, entry.weight);
+        }
+
+        return new Lookup<>(editor.build(stats.recordHit()), entry.value, true);
+    }
+
+    public Stats stats() {
+        return stats;
+    }
+
+    public long weight() {
+        return weight;
+    }
+
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Updates the entries and the recency list of this snapshot together.
+     */
+    private final class Editor {
+        private PersistentMap<K, CacheEntry<V>> entries;
+        private Object eldest = PersistentCache.this.eldest;
+        private Object newest = PersistentCache.this.newest;
+        private long weight;
+        private long evictionCount;
+
+        private Editor(PersistentMap<K, CacheEntry<V>> entries, long weight) {
+            this.entries = entries;
+            this.weight = weight;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void remove(Object key) {
+            CacheEntry<V> entry = entries.get(key);
+
+            if (entry.previous == NONE) {
+                eldest = entry.next;
+            } else {
+                K previous = (K) entry.previous;
+                entries = entries.insert(previous, entries.get(previous).withNext(entry.next));
+            }
+
+            if (entry.next == NONE) {
+                newest = entry.previous;
+            } else {
+                K next = (K) entry.next;
+                entries = entries.insert(next, entries.get(next).withPrevious(entry.previous));
+            }
+
+            entries = entries.delete(key);
+            weight -= entry.weight;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void append(K key, V value, int weight) {
+            if (newest == NONE) {
+                eldest = key;
+            } else {
+                K previous = (K) newest;
+                entries = entries.insert(previous, entries.get(previous).withNext(key));
+            }
+
+            entries = entries.insert(key, new CacheEntry<>(value, weight, newest, NONE));
+            newest = key;
+            this.weight += weight;
+        }
+
+        private void evict() {
+            while (weight > maximumWeight) {
+                remove(eldest);
+                evictionCount++;
+            }
+        }
+
+        private PersistentCache<K, V> build(Stats stats) {
+            return new PersistentCache<>(entries, eldest, newest, weight, maximumWeight, weigher,
+                    stats.recordEvictions(evictionCount));
+        }
+    }
+
+    private int weigh(K key, V value) {
+        int weight = weigher.applyAsInt(key, value);
+
+        if (weight < 0) {
+            throw new IllegalStateException("Negative weight: " + weight);
+        }
+        return weight;
+    }
+
+    private static <V> long totalWeight(PersistentMap<?, CacheEntry<V>> entries) {
+        long weight = 0;
+
+        for (CacheEntry<V> entry : entries.values()) {
+            weight += entry.weight;
+        }
+        return weight;
+    }
+
+    /* ------------- PersistentMap API ---------- */
+
+    @Override
+    public PersistentCache<K, V> insert(K k, V v) {
+        int entryWeight = weigh(k, v);
+        Editor editor = new Editor(entries, weight);
+
+        if (entries.containsKey(k)) {
+            editor.remove(k);
+        }
+
+        editor.append(k, v, entryWeight);
+        editor.evict();
+
+        return editor.build(stats);
+    }
+
+    @Override
+    public PersistentCache<K, V> delete(Object o) {
+        if (!entries.containsKey(o)) {
+            return this;
+        }
+
+        Editor editor = new Editor(entries, weight);
+        editor.remove(o);
+
+        return editor.build(stats);
+    }
+
+    @Override
+    public PersistentCache<K, V> insertAll(Map<? extends K, ? extends V> map) {
+        PersistentCache<K, V> dst = this;
+
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            dst = dst.insert(entry.getKey(), entry.getValue());
+        }
+
+        return dst;
+    }
+
+    /**
+     * Removes the entries rejected by the predicate from the recency list one by one, so the cost
+     * beyond the filter itself is proportional to the number of removed entries.
+     */
+    @Override
+    public PersistentCache<K, V> filter(BiPredicate<? super K, ? super V> predicate, boolean parallel) {
+        Objects.requireNonNull(predicate);
+
+        PersistentMap<K, CacheEntry<V>> entries =
+                this.entries.filter((k, e) -> predicate.test(k, e.value), parallel);
+
+        if (entries == this.entries) {
+            return this;
+        }
+
+        Editor editor = new Editor(this.entries, weight);
+
+        for (Object key = eldest; key != NONE; key = this.entries.get(key).next) {
+            if (!entries.containsKey(key)) {
+                editor.remove(key);
+            }
+        }
+
+        return editor.build(stats);
+    }
+
+    @Override
+    public PersistentCache<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function,
+                                           boolean parallel) {
+        Objects.requireNonNull(function);
+
+        PersistentMap<K, CacheEntry<V>> entries = this.entries.mapValues((k, e) -> {
+            V value = function.apply(k, e.value);
+            return (value == e.value) ? e : new CacheEntry<>(value, weigh(k, value), e.previous, e.next);
+        }, parallel);
+
+        if (entries == this.entries) {
+            return this;
+        }
+
+        Editor editor = new Editor(entries, totalWeight(entries));
+        editor.evict();
+
+        return editor.build(stats);
+    }
+
+    @Override
+    public PersistentCache<K, V> filter(BiPredicate<? super K, ? super V> predicate) {
+        return filter(predicate, false);
+    }
+
+    @Override
+    public PersistentCache<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function) {
+        return mapValues(function, false);
+    }
+
+    @Override
+    public PersistentCache<K, V> removeIf(BiPredicate<? super K, ? super V> predicate) {
+        return filter(predicate.negate(), false);
+    }
+
+    /* ----------------- Map API ---------------- */
+
+    private EntrySet entrySet;
+
+    @Override
+    @NotNull
+    public Set<Entry<K, V>> entrySet() {
+        EntrySet es = entrySet;
+        return (es != null) ? es : (entrySet = new EntrySet());
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        @Override
+        @NotNull
+        public Iterator<Entry<K, V>> iterator() {
+            Iterator<Entry<K, CacheEntry<V>>> i = entries.entrySet().iterator();
+
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return i.hasNext();
+                }
+
+                @Override
+                public Entry<K, V> next() {
+                    Entry<K, CacheEntry<V>> entry = i.next();
+                    return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().value);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return PersistentCache.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+
+            Map.Entry<?, ?> entry = (Entry<?, ?>) o;
+            CacheEntry<V> cached = entries.get(entry.getKey());
+
+            return cached != null && Objects.equals(entry.getValue(), cached.value);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        CacheEntry<V> entry = entries.get(key);
+        return (entry != null) ? entry.value : null;
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+}
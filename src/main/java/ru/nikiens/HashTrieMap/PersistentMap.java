@@ -1,6 +1,8 @@
 package ru.nikiens.HashTrieMap;
 
 import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
 
 public interface PersistentMap<K, V> extends Map<K,V> {
 
@@ -9,4 +11,34 @@ public interface PersistentMap<K, V> extends Map<K,V> {
     PersistentMap<K, V> delete(Object o);
 
     PersistentMap<K, V> insertAll(Map<? extends K, ? extends V> map);
+
+    /**
+     * Returns a map containing only the entries matching the predicate. If {@code parallel} is set,
+     * top-level subtrees are processed on the common fork-join pool, so the predicate has to be
+     * safe to call concurrently.
+     */
+    PersistentMap<K, V> filter(BiPredicate<? super K, ? super V> predicate, boolean parallel);
+
+    /**
+     * Returns a map with every value replaced by the result of the function. Values for which the
+     * function returns the same reference are treated as unchanged. If {@code parallel} is set,
+     * top-level subtrees are processed on the common fork-join pool.
+     */
+    PersistentMap<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function, boolean parallel);
+
+    default PersistentMap<K, V> filter(BiPredicate<? super K, ? super V> predicate) {
+        return filter(predicate, false);
+    }
+
+    default PersistentMap<K, V> mapValues(BiFunction<? super K, ? super V, ? extends V> function) {
+        return mapValues(function, false);
+    }
+
+    default PersistentMap<K, V> removeIf(BiPredicate<? super K, ? super V> predicate) {
+        return removeIf(predicate, false);
+    }
+
+    default PersistentMap<K, V> removeIf(BiPredicate<? super K, ? super V> predicate, boolean parallel) {
+        return filter(predicate.negate(), parallel);
+    }
 }
@@ -0,0 +1,293 @@
+package ru.nikiens.HashTrieMap;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holder of the current version of a {@link HashTrieMap} which publishes a {@link Change} for
+ * every committed version to its subscribers, honouring their demand.
+ * <p>
+ * A subscriber either receives every version in order, which may queue up versions while it is
+ * slow, or subscribes with {@code coalesce} set and receives a single cumulative change from the
+ * last version it has seen to the latest one. Diffs are computed lazily on delivery and skip
+ * subtrees shared by the two versions.
+ * <p>
+ * Reads of the current version never block; commits are serialised.
+ */
+public final class PersistentMapPublisher<K, V> implements Flow.Publisher<PersistentMapPublisher.Change<K, V>>,
+        AutoCloseable {
+
+    private final Executor executor;
+    private final List<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private volatile Version<K, V> current;
+    private volatile boolean isClosed;
+
+    public PersistentMapPublisher(HashTrieMap<K, V> initial) {
+        this(initial, ForkJoinPool.commonPool());
+    }
+
+    public PersistentMapPublisher(HashTrieMap<K, V> initial, Executor executor) {
+        this.current = new Version<>(0, Objects.requireNonNull(initial));
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    private static final class Version<K, V> {
+        private final long number;
+        private final HashTrieMap<K, V> map;
+
+        private Version(long number, HashTrieMap<K, V> map) {
+            this.number = number;
+            this.map = map;
+        }
+    }
+
+    public static final class Change<K, V> {
+        private final long fromVersion;
+        private final long version;
+        private final HashTrieMap<K, V> map;
+        private final MapDiff<K, V> diff;
+
+        private Change(long fromVersion, long version, HashTrieMap<K, V> map, MapDiff<K, V> diff) {
+            this.fromVersion = fromVersion;
+            this.version = version;
+            this.map = map;
+            this.diff = diff;
+        }
+
+        /**
+         * Returns the version the diff is computed from. It is lower than {@code version() - 1} if
+         * several versions have been coalesced.
+         */
+        public long fromVersion() {
+            return fromVersion;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public HashTrieMap<K, V> map() {
+            return map;
+        }
+
+        public MapDiff<K, V> diff() {
+            return diff;
+        }
+    }
+
+    /* ------------- Holder API ---------- */
+
+    public HashTrieMap<K, V> current() {
+        return current.map;
+    }
+
+    public long version() {
+        return current.number;
+    }
+
+    /**
+     * Makes the map the current version and returns its number. Committing the current map again
+     * does not create a new version.
+     */
+    public synchronized long commit(HashTrieMap<K, V> map) {
+        if (isClosed) {
+            throw new IllegalStateException("Publisher is closed");
+        }
+
+        Version<K, V> previous = current;
+
+        if (previous.map == Objects.requireNonNull(map)) {
+            return previous.number;
+        }
+
+        Version<K, V> version = new Version<>(previous.number + 1, map);
+        current = version;
+
+        for (ChangeSubscription subscription : subscriptions) {
+            subscription.offer(version);
+        }
+        return version.number;
+    }
+
+    public synchronized HashTrieMap<K, V> update(UnaryOperator<HashTrieMap<K, V>> function) {
+        HashTrieMap<K, V> map = function.apply(current.map);
+        commit(map);
+
+        return map;
+    }
+
+    /**
+     * Completes every subscription once the versions already committed have been delivered.
+     */
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+
+        for (ChangeSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /* ------------- Flow.Publisher API ---------- */
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Change<K, V>> subscriber) {
+        subscribe(subscriber, false);
+    }
+
+    public synchronized void subscribe(Flow.Subscriber<? super Change<K, V>> subscriber, boolean coalesce) {
+        ChangeSubscription subscription = new ChangeSubscription(Objects.requireNonNull(subscriber), coalesce, current);
+
+        if (isClosed) {
+            subscription.complete();
+        } else {
+            subscriptions.add(subscription);
+        }
+        subscription.schedule();
+    }
+
+    private final class ChangeSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super Change<K, V>> subscriber;
+        private final boolean coalesce;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+
+        private final Deque<Version<K, V>> pending = new ArrayDeque<>();
+        private boolean isCompleted;
+
+        private volatile boolean isCancelled;
+        private volatile Throwable error;
+
+        private Version<K, V> delivered;
+        private boolean isSubscribed;
+        private boolean isTerminated;
+
+        private ChangeSubscription(Flow.Subscriber<? super Change<K, V>> subscriber, boolean coalesce,
+                                   Version<K, V> delivered) {
+            this.subscriber = subscriber;
+            this.coalesce = coalesce;
+            this.delivered = delivered;
+        }
+
+        private void offer(Version<K, V> version) {
+            synchronized (this) {
+                if (coalesce) {
+                    pending.clear();
+                }
+                pending.add(version);
+            }
+            schedule();
+        }
+
+        private void complete() {
+            synchronized (this) {
+                isCompleted = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Non-positive request: " + n);
+                schedule();
+                return;
+            }
+
+            demand.getAndAccumulate(n, (current, requested) -> {
+                long sum = current + requested;
+                return (sum < 0) ? Long.MAX_VALUE : sum;
+            });
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            isCancelled = true;
+            subscriptions.remove(this);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+
+            do {
+                drain();
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (isTerminated) {
+                return;
+            }
+
+            if (!isSubscribed) {
+                isSubscribed = true;
+                subscriber.onSubscribe(this);
+            }
+
+            while (!isCancelled) {
+                if (error != null) {
+                    terminate();
+                    subscriber.onError(error);
+                    return;
+                }
+
+                Version<K, V> next;
+                boolean isDone;
+
+                synchronized (this) {
+                    next = (demand.get() > 0) ? pending.poll() : null;
+                    isDone = next == null && isCompleted && pending.isEmpty();
+                }
+
+                if (isDone) {
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+
+                if (next == null) {
+                    return;
+                }
+
+                Change<K, V> change = new Change<>(delivered.number, next.number, next.map,
+                        delivered.map.diff(next.map));
+
+                delivered = next;
+                demand.decrementAndGet();
+
+                try {
+                    subscriber.onNext(change);
+                } catch (Throwable e) {
+                    terminate();
+                    subscriber.onError(e);
+                    return;
+                }
+            }
+        }
+
+        private void terminate() {
+            isTerminated = true;
+            cancel();
+        }
+    }
+}
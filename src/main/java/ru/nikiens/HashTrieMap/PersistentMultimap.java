@@ -0,0 +1,33 @@
+package ru.nikiens.HashTrieMap;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+public interface PersistentMultimap<K, V> {
+
+    PersistentMultimap<K, V> insert(K key, V value);
+
+    PersistentMultimap<K, V> delete(Object key, Object value);
+
+    PersistentMultimap<K, V> deleteAll(Object key);
+
+    /**
+     * Returns the values associated with the key, or an empty set if there are none.
+     */
+    Set<V> get(Object key);
+
+    boolean containsKey(Object key);
+
+    boolean containsEntry(Object key, Object value);
+
+    Set<K> keySet();
+
+    void forEach(BiConsumer<? super K, ? super V> action);
+
+    /**
+     * Returns the number of key-value pairs.
+     */
+    int size();
+
+    boolean isEmpty();
+}
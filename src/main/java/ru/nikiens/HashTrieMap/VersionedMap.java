@@ -0,0 +1,311 @@
+package ru.nikiens.HashTrieMap;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * History of committed versions of a {@link HashTrieMap}. Each commit gets the next version
+ * number and a timestamp, and every retained version can be read back in constant time.
+ * <p>
+ * Versions are dropped oldest first according to a {@link Retention}; the latest version is always
+ * retained. Retained memory is estimated from the nodes each version does not share with its
+ * predecessor, so it is maintained at the cost of the changed paths rather than of a full walk.
+ * Keys and values are not counted.
+ */
+public final class VersionedMap<K, V> {
+    private final Retention retention;
+    private final Clock clock;
+
+    private Snapshot<K, V>[] snapshots;
+    private int head;
+    private int count;
+
+    private long retainedBytes;
+
+    public VersionedMap(HashTrieMap<K, V> initial, Retention retention) {
+        this(initial, retention, Clock.systemUTC());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public VersionedMap(HashTrieMap<K, V> initial, Retention retention, Clock clock) {
+        this.retention = Objects.requireNonNull(retention);
+        this.clock = Objects.requireNonNull(clock);
+
+        this.snapshots = new Snapshot[8];
+        this.snapshots[0] = new Snapshot<>(0, clock.instant(), Objects.requireNonNull(initial));
+        this.count = 1;
+        this.retainedBytes = initial.estimatedBytes();
+    }
+
+    /**
+     * Bounds on the retained versions. A version is dropped as soon as any of the bounds is
+     * exceeded.
+     */
+    public static final class Retention {
+        private static final Retention UNBOUNDED = new Retention(Integer.MAX_VALUE, null, Long.MAX_VALUE);
+
+        private final int maximumVersions;
+        private final Duration maximumAge;
+        private final long maximumBytes;
+
+        private Retention(int maximumVersions, Duration maximumAge, long maximumBytes) {
+            this.maximumVersions = maximumVersions;
+            this.maximumAge = maximumAge;
+            this.maximumBytes = maximumBytes;
+        }
+
+        public static Retention unbounded() {
+            return UNBOUNDED;
+        }
+
+        public Retention withMaximumVersions(int maximumVersions) {
+            if (maximumVersions < 1) {
+                throw new IllegalArgumentException("maximumVersions < 1");
+            }
+            return new Retention(maximumVersions, maximumAge, maximumBytes);
+        }
+
+        /**
+         * Drops versions committed longer ago than the given age. The age is checked on every
+         * commit and by {@link VersionedMap#trim()}.
+         */
+        public Retention withMaximumAge(Duration maximumAge) {
+            if (maximumAge.isNegative()) {
+                throw new IllegalArgumentException("maximumAge < 0");
+            }
+            return new Retention(maximumVersions, maximumAge, maximumBytes);
+        }
+
+        /**
+         * Drops versions while the estimated bytes retained by all versions exceed the given
+         * bound.
+         */
+        public Retention withMaximumBytes(long maximumBytes) {
+            if (maximumBytes < 0) {
+                throw new IllegalArgumentException("maximumBytes < 0");
+            }
+            return new Retention(maximumVersions, maximumAge, maximumBytes);
+        }
+    }
+
+    public static final class Snapshot<K, V> {
+        private final long version;
+        private final Instant timestamp;
+        private final HashTrieMap<K, V> map;
+
+        private Snapshot(long version, Instant timestamp, HashTrieMap<K, V> map) {
+            this.version = version;
+            this.timestamp = timestamp;
+            this.map = map;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public Instant timestamp() {
+            return timestamp;
+        }
+
+        public HashTrieMap<K, V> map() {
+            return map;
+        }
+    }
+
+    /**
+     * Estimated memory of a version and the part of it shared with the neighbouring versions.
+     */
+    public static final class Sharing {
+        private final long bytes;
+        private final long sharedWithPrevious;
+        private final long sharedWithNext;
+
+        private Sharing(long bytes, long sharedWithPrevious, long sharedWithNext) {
+            this.bytes = bytes;
+            this.sharedWithPrevious = sharedWithPrevious;
+            this.sharedWithNext = sharedWithNext;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the bytes shared with the previous retained version, or 0 if there is none.
+         */
+        public long sharedWithPrevious() {
+            return sharedWithPrevious;
+        }
+
+        /**
+         * Returns the bytes shared with the next retained version, or 0 if there is none.
+         */
+        public long sharedWithNext() {
+            return sharedWithNext;
+        }
+    }
+
+    /* ------------- Versions ---------- */
+
+    /**
+     * Records the map as the latest version and returns its number. Committing the latest map
+     * again does not create a new version.
+     */
+    public synchronized long commit(HashTrieMap<K, V> map) {
+        Snapshot<K, V> latest = latest();
+
+        if (latest.map == Objects.requireNonNull(map)) {
+            return latest.version;
+        }
+
+        if (count == snapshots.length) {
+            grow();
+        }
+
+        Snapshot<K, V> snapshot = new Snapshot<>(latest.version + 1, clock.instant(), map);
+
+        snapshots[(head + count++) % snapshots.length] = snapshot;
+        retainedBytes += map.uniqueBytes(latest.map);
+
+        evict(snapshot.timestamp);
+        return snapshot.version;
+    }
+
+    /**
+     * Commits the map of a retained version as the latest version and returns the new number.
+     */
+    public synchronized long rollback(long version) {
+        return commit(snapshot(version).map);
+    }
+
+    /**
+     * Drops the versions which have exceeded the maximum age.
+     */
+    public synchronized void trim() {
+        evict(clock.instant());
+    }
+
+    public synchronized HashTrieMap<K, V> current() {
+        return latest().map;
+    }
+
+    public synchronized long version() {
+        return latest().version;
+    }
+
+    public synchronized long oldestVersion() {
+        return snapshots[head].version;
+    }
+
+    public synchronized int retainedVersions() {
+        return count;
+    }
+
+    /**
+     * Returns the estimated bytes taken by the nodes of all retained versions.
+     */
+    public synchronized long retainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @throws NoSuchElementException if the version has not been committed or is not retained
+     */
+    public synchronized Snapshot<K, V> snapshot(long version) {
+        return snapshots[indexOf(version)];
+    }
+
+    public synchronized HashTrieMap<K, V> asOf(long version) {
+        return snapshot(version).map;
+    }
+
+    /**
+     * Returns the latest version committed at or before the given instant.
+     *
+     * @throws NoSuchElementException if the oldest retained version is newer than the instant
+     */
+    public synchronized Snapshot<K, V> asOf(Instant instant) {
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (at(middle).timestamp.isAfter(instant)) {
+                high = middle - 1;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        if (high < 0) {
+            throw new NoSuchElementException("No version retained at " + instant);
+        }
+        return at(high);
+    }
+
+    /**
+     * Reports how much of a retained version is shared with its neighbours. The size of the
+     * version itself is computed by a full walk of its nodes.
+     */
+    public synchronized Sharing sharing(long version) {
+        int index = indexOf(version);
+        int offset = (int) (version - snapshots[head].version);
+
+        HashTrieMap<K, V> map = snapshots[index].map;
+        long bytes = map.estimatedBytes();
+
+        long sharedWithPrevious = (offset > 0) ? bytes - map.uniqueBytes(at(offset - 1).map) : 0;
+        long sharedWithNext = (offset < count - 1) ? bytes - map.uniqueBytes(at(offset + 1).map) : 0;
+
+        return new Sharing(bytes, sharedWithPrevious, sharedWithNext);
+    }
+
+    private Snapshot<K, V> latest() {
+        return at(count - 1);
+    }
+
+    private Snapshot<K, V> at(int offset) {
+        return snapshots[(head + offset) % snapshots.length];
+    }
+
+    private int indexOf(long version) {
+        long offset = version - snapshots[head].version;
+
+        if (offset < 0 || offset >= count) {
+            throw new NoSuchElementException("Version " + version + " is not retained");
+        }
+        return (int) ((head + offset) % snapshots.length);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void grow() {
+        Snapshot<K, V>[] snapshots = new Snapshot[2 * this.snapshots.length];
+
+        for (int i = 0; i < count; i++) {
+            snapshots[i] = at(i);
+        }
+
+        this.snapshots = snapshots;
+        this.head = 0;
+    }
+
+    private void evict(Instant now) {
+        Instant oldestAllowed = (retention.maximumAge != null) ? now.minus(retention.maximumAge) : Instant.MIN;
+
+        while (count > 1 && (count > retention.maximumVersions
+                || retainedBytes > retention.maximumBytes
+                || snapshots[head].timestamp.isBefore(oldestAllowed))) {
+
+            Snapshot<K, V> oldest = snapshots[head];
+            retainedBytes -= oldest.map.uniqueBytes(at(1).map);
+
+            snapshots[head] = null;
+            head = (head + 1) % snapshots.length;
+            count--;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package ru.nikiens.HashTrieMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class HashTrieBiMapTest {
+    private final HashTrieBiMap<String, Integer> biMap = HashTrieBiMap.<String, Integer>empty()
+            .insert("a", 1)
+            .insert("b", 2)
+            .insert("c", 3);
+
+    @Test
+    public void testInverse() {
+        Assert.assertEquals(Map.of(1, "a", 2, "b", 3, "c"), biMap.inverse());
+        Assert.assertSame(biMap, biMap.inverse().inverse());
+        Assert.assertTrue(biMap.containsValue(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateValue() {
+        biMap.insert("d", 1);
+    }
+
+    @Test
+    public void testForceInsert() {
+        HashTrieBiMap<String, Integer> forced = biMap.forceInsert("d", 1).forceInsert("b", 4);
+
+        Assert.assertEquals(Map.of("b", 4, "c", 3, "d", 1), forced);
+        Assert.assertEquals(Map.of(1, "d", 3, "c", 4, "b"), forced.inverse());
+    }
+
+    @Test
+    public void testDeleteUpdatesBothDirections() {
+        HashTrieBiMap<String, Integer> deleted = biMap.delete("b");
+
+        Assert.assertEquals(Map.of("a", 1, "c", 3), deleted);
+        Assert.assertEquals(Map.of(1, "a", 3, "c"), deleted.inverse());
+        Assert.assertEquals(Map.of("a", 1), deleted.inverse().delete(3).inverse());
+    }
+
+    @Test
+    public void testFilterAndMapValues() {
+        Assert.assertEquals(Map.of(2, "b"), biMap.filter((k, v) -> v % 2 == 0).inverse());
+
+        HashTrieBiMap<String, Integer> rotated = biMap.mapValues((k, v) -> v % 3 + 1);
+
+        Assert.assertEquals(Map.of("a", 2, "b", 3, "c", 1), rotated);
+        Assert.assertEquals(Map.of(2, "a", 3, "b", 1, "c"), rotated.inverse());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMapValuesToDuplicates() {
+        biMap.mapValues((k, v) -> 0);
+    }
+}
@@ -7,6 +7,7 @@ import com.google.common.collect.testing.features.MapFeature;
 import junit.framework.TestSuite;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -14,16 +15,30 @@ import org.junit.runners.Suite;
 import ru.nikiens.HashTrieMap.generators.HashTrieMapCollisionGenerator;
 import ru.nikiens.HashTrieMap.generators.HashTrieMapGenerator;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         HashTrieMapTest.GenericTest.class,
+        HashTrieMapTest.TrieGenericTest.class,
         HashTrieMapTest.HashCollisionGenericTest.class,
         HashTrieMapTest.RegularNodeInsertDeleteTest.class,
-        HashTrieMapTest.HashCollisionInsertDeleteTest.class
+        HashTrieMapTest.HashCollisionInsertDeleteTest.class,
+        HashTrieMapTest.TransformTest.class,
+        HashTrieMapTest.InternTest.class,
+        HashTrieMapTest.ShardingTest.class,
+        HashTrieMapTest.SmallMapTest.class,
+        HashTrieMapTest.CursorTest.class,
+        HashTrieMapTest.DiffTest.class,
+        HashTrieMapTest.AllocationTest.class
 })
 
 public class HashTrieMapTest {
@@ -40,10 +55,23 @@ public class HashTrieMapTest {
         }
     }
 
+    public static class TrieGenericTest {
+        public static TestSuite suite() {
+            return MapTestSuiteBuilder
+                    .using(new TrieRootedGenerator(new HashTrieMapGenerator()))
+                    .named("HashTrieMap BitmapIndexedNode tests")
+                    .withFeatures(
+                            MapFeature.ALLOWS_NULL_KEYS,
+                            MapFeature.ALLOWS_NULL_VALUES,
+                            CollectionSize.ANY
+                    ).createTestSuite();
+        }
+    }
+
     public static class HashCollisionGenericTest {
         public static TestSuite suite() {
             return MapTestSuiteBuilder
-                    .using(new HashTrieMapCollisionGenerator())
+                    .using(new TrieRootedGenerator(new HashTrieMapCollisionGenerator()))
                     .named("HashTrieMap HashCollisionNode tests")
                     .withFeatures(
                             MapFeature.ALLOWS_NULL_KEYS,
@@ -69,6 +97,11 @@ public class HashTrieMapTest {
             Assert.assertEquals(controlMap, testingMap);
         }
 
+        @Test
+        public void testRegularNodeIteration() {
+            Assert.assertEquals(controlMap.entrySet(), new HashSet<>(testingMap.entrySet()));
+        }
+
         @Test
         public void testRegularNodeRemove() {
             String[] keys = controlMap.keySet().toArray(String[]::new);
@@ -98,8 +131,7 @@ public class HashTrieMapTest {
 
     public static class HashCollisionInsertDeleteTest {
         public final Map<String, Integer> controlMap =
-                new HashTrieMapCollisionGenerator().samples().asList().stream()
-                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                new HashMap<>(new HashTrieMapCollisionGenerator().createPadded());
 
         public PersistentMap<Object, Object> testingMap =
                 new HashTrieMap<>().insertAll(controlMap);
@@ -113,7 +145,7 @@ public class HashTrieMapTest {
         public void testHashCollisionNodeRemove() {
             String[] keys = controlMap.keySet().toArray(String[]::new);
 
-            for (int i = 2; i < 5; i++) {
+            for (int i = 2; i < 9; i++) {
                 String key = keys[i];
 
                 controlMap.remove(key);
@@ -135,4 +167,437 @@ public class HashTrieMapTest {
             Assert.assertEquals(controlMap, testingMap);
         }
     }
+
+    public static class TransformTest {
+        public final Map<String, Integer> controlMap = new HashMap<>();
+        public PersistentMap<String, Integer> testingMap = new HashTrieMap<>();
+
+        {
+            for (int i = 0; i < 10000; i++) {
+                controlMap.put(HashTrieMapGenerator.getRandomString(), i);
+            }
+            testingMap = testingMap.insertAll(controlMap);
+        }
+
+        @Test
+        public void testFilter() {
+            PersistentMap<String, Integer> filtered = testingMap.filter((k, v) -> v % 3 == 0);
+            PersistentMap<String, Integer> parallelFiltered = testingMap.filter((k, v) -> v % 3 == 0, true);
+
+            controlMap.values().removeIf(v -> v % 3 != 0);
+
+            Assert.assertEquals(controlMap, filtered);
+            Assert.assertEquals(controlMap, parallelFiltered);
+            Assert.assertEquals(controlMap.entrySet(), new HashSet<>(filtered.entrySet()));
+        }
+
+        @Test
+        public void testRemoveIf() {
+            PersistentMap<String, Integer> removed = testingMap.removeIf((k, v) -> v < 9990);
+
+            controlMap.values().removeIf(v -> v < 9990);
+
+            Assert.assertEquals(controlMap, removed);
+            Assert.assertEquals(10000, testingMap.size());
+        }
+
+        @Test
+        public void testMapValues() {
+            PersistentMap<String, Integer> mapped = testingMap.mapValues((k, v) -> v * 2);
+            PersistentMap<String, Integer> parallelMapped = testingMap.mapValues((k, v) -> v * 2, true);
+
+            controlMap.replaceAll((k, v) -> v * 2);
+
+            Assert.assertEquals(controlMap, mapped);
+            Assert.assertEquals(controlMap, parallelMapped);
+        }
+
+        @Test
+        public void testUnchangedMapIsReturned() {
+            Assert.assertSame(testingMap, testingMap.filter((k, v) -> true));
+            Assert.assertSame(testingMap, testingMap.removeIf((k, v) -> false, true));
+            Assert.assertSame(testingMap, testingMap.mapValues((k, v) -> v));
+        }
+
+        @Test
+        public void testHashCollisionNodeFilter() {
+            Map<String, Integer> controlMap = new HashMap<>(new HashTrieMapCollisionGenerator().createPadded());
+            PersistentMap<String, Integer> collisions = HashTrieMap.<String, Integer>empty().insertAll(controlMap);
+
+            PersistentMap<String, Integer> filtered = collisions.filter((k, v) -> v > 4);
+            controlMap.values().removeIf(v -> v <= 4);
+
+            Assert.assertEquals(controlMap, filtered);
+            Assert.assertEquals(controlMap.size(), filtered.entrySet().stream().count());
+        }
+    }
+
+    public static class InternTest {
+        @Test
+        public void testEqualMapsShareNodes() {
+            Map<String, Integer> controlMap = new HashMap<>();
+
+            for (int i = 0; i < 10000; i++) {
+                controlMap.put(HashTrieMapGenerator.getRandomString(), i);
+            }
+
+            NodeCanonicalizer canonicalizer = new NodeCanonicalizer();
+
+            HashTrieMap<String, Integer> first =
+                    new HashTrieMap<String, Integer>().insertAll(controlMap).intern(canonicalizer);
+            int nodeCount = canonicalizer.size();
+
+            HashTrieMap<String, Integer> second =
+                    new HashTrieMap<String, Integer>().insertAll(controlMap).intern(canonicalizer);
+
+            Assert.assertEquals(nodeCount, canonicalizer.size());
+            Assert.assertEquals(controlMap, first);
+            Assert.assertEquals(controlMap, second);
+            Assert.assertSame(second, second.intern(canonicalizer));
+        }
+
+        @Test
+        public void testCollisionNodesInsertedInAnyOrderAreShared() {
+            List<String> keys = new ArrayList<>();
+
+            for (int i = 0; i < 50; i++) {
+                keys.add(HashTrieMapGenerator.getRandomString());
+            }
+            keys.addAll(List.of("AaAaAa", "AaAaBB", "AaBBAa", "AaBBBB", "BBAaAa", "BBAaBB", "BBBBAa", "BBBBBB"));
+
+            HashTrieMap<String, Integer> forward = HashTrieMap.empty();
+            HashTrieMap<String, Integer> backward = HashTrieMap.empty();
+
+            for (int i = 0; i < keys.size(); i++) {
+                forward = forward.insert(keys.get(i), i);
+                backward = backward.insert(keys.get(keys.size() - 1 - i), keys.size() - 1 - i);
+            }
+
+            NodeCanonicalizer canonicalizer = new NodeCanonicalizer();
+
+            forward.intern(canonicalizer);
+            int nodeCount = canonicalizer.size();
+            backward.intern(canonicalizer);
+
+            Assert.assertEquals(forward, backward);
+            Assert.assertEquals(nodeCount, canonicalizer.size());
+        }
+
+        @Test
+        public void testSmallMapsInsertedInAnyOrderAreShared() {
+            HashTrieMap<String, Integer> forward = HashTrieMap.<String, Integer>empty()
+                    .insert("a", 1).insert("b", 2).insert("c", 3);
+            HashTrieMap<String, Integer> backward = HashTrieMap.<String, Integer>empty()
+                    .insert("c", 3).insert("b", 2).insert("a", 1);
+
+            NodeCanonicalizer canonicalizer = new NodeCanonicalizer();
+
+            forward.intern(canonicalizer);
+            int nodeCount = canonicalizer.size();
+            backward.intern(canonicalizer);
+
+            Assert.assertEquals(forward, backward);
+            Assert.assertEquals(nodeCount, canonicalizer.size());
+        }
+
+        @Test
+        public void testInternedMapUpdates() {
+            NodeCanonicalizer canonicalizer = new NodeCanonicalizer();
+            Map<Object, Object> controlMap =
+                    new HashMap<>(new HashTrieMapCollisionGenerator().createPadded());
+
+            HashTrieMap<Object, Object> interned =
+                    new HashTrieMap<>().insertAll(controlMap).intern(canonicalizer);
+            PersistentMap<Object, Object> updated = interned.insert("AaBB", 42).delete("BBBB");
+
+            controlMap.put("AaBB", 42);
+            controlMap.remove("BBBB");
+
+            Assert.assertEquals(controlMap, updated);
+            Assert.assertEquals(12, interned.size());
+        }
+
+        @Test
+        public void testEqualValuesAreNotShared() {
+            NodeCanonicalizer canonicalizer = new NodeCanonicalizer();
+
+            HashTrieMap<String, List<Integer>> first =
+                    HashTrieMap.<String, List<Integer>>empty().insert("limits", new ArrayList<>(List.of(1)));
+            HashTrieMap<String, List<Integer>> second =
+                    HashTrieMap.<String, List<Integer>>empty().insert("limits", new LinkedList<>(List.of(1)));
+
+            first.intern(canonicalizer);
+
+            Assert.assertTrue(second.intern(canonicalizer).get("limits") instanceof LinkedList);
+        }
+    }
+
+    public static class ShardingTest {
+        public final Map<String, Integer> controlMap = new HashMap<>();
+        public HashTrieMap<String, Integer> testingMap;
+
+        {
+            for (int i = 0; i < 10000; i++) {
+                controlMap.put(HashTrieMapGenerator.getRandomString(), i);
+            }
+            testingMap = new HashTrieMap<String, Integer>().insertAll(controlMap);
+        }
+
+        @Test
+        public void testSplit() {
+            List<HashTrieMap<String, Integer>> shards = testingMap.split(7);
+            Map<String, Integer> union = new HashMap<>();
+
+            Assert.assertEquals(7, shards.size());
+
+            for (HashTrieMap<String, Integer> shard : shards) {
+                Assert.assertEquals(shard.size(), new HashSet<>(shard.entrySet()).size());
+                union.putAll(shard);
+            }
+
+            Assert.assertEquals(controlMap, union);
+            Assert.assertSame(testingMap, testingMap.split(1).get(0));
+        }
+
+        @Test
+        public void testJoinUpdatedShards() {
+            List<HashTrieMap<String, Integer>> shards = testingMap.split(32);
+
+            for (int i = 0; i < shards.size(); i++) {
+                HashTrieMap<String, Integer> shard = shards.get(i);
+                String key = shard.keySet().iterator().next();
+
+                controlMap.remove(key);
+                shards.set(i, shard.delete(key));
+            }
+
+            HashTrieMap<String, Integer> joined = HashTrieMap.join(shards);
+
+            Assert.assertEquals(controlMap, joined);
+            Assert.assertEquals(controlMap.size(), joined.size());
+            Assert.assertEquals(controlMap.entrySet(), new HashSet<>(joined.entrySet()));
+        }
+
+        @Test
+        public void testShardsUpdatedBeforeCounting() {
+            List<HashTrieMap<String, Integer>> shards = testingMap.split(4);
+
+            for (int i = 0; i < shards.size(); i++) {
+                HashTrieMap<String, Integer> shard = shards.get(i);
+                String key = shard.keySet().iterator().next();
+
+                HashTrieMap<String, Integer> updated = shard
+                        .delete(key)
+                        .insert("added" + i, i)
+                        .filter((k, v) -> v % 2 == 0);
+
+                Map<String, Integer> controlShard = new HashMap<>(shard);
+                controlShard.remove(key);
+                controlShard.put("added" + i, i);
+                controlShard.values().removeIf(v -> v % 2 != 0);
+
+                Assert.assertEquals(controlShard.size(), updated.size());
+                Assert.assertEquals(controlShard, updated);
+            }
+        }
+
+        @Test
+        public void testPageShardWithUnboundedLimit() {
+            HashTrieMap<String, Integer> shard = testingMap.split(4).get(0);
+            HashTrieMap.Page<String, Integer> page = shard.page(HashTrieMap.Cursor.START, Integer.MAX_VALUE);
+
+            Assert.assertEquals(shard.size(), page.entries().size());
+            Assert.assertFalse(page.hasNext());
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void testJoinOverlappingShards() {
+            HashTrieMap.join(List.of(testingMap, testingMap));
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void testSplitInvalidShardCount() {
+            testingMap.split(33);
+        }
+    }
+
+    public static class SmallMapTest {
+        @Test
+        public void testGrowAndShrink() {
+            Map<Integer, Integer> controlMap = new HashMap<>();
+            PersistentMap<Integer, Integer> testingMap = HashTrieMap.empty();
+
+            for (int i = 0; i < 20; i++) {
+                controlMap.put(i * 32, i);
+                testingMap = testingMap.insert(i * 32, i);
+
+                Assert.assertEquals(controlMap, testingMap);
+                Assert.assertEquals(controlMap.entrySet(), new HashSet<>(testingMap.entrySet()));
+            }
+
+            for (int i = 0; i < 20; i++) {
+                controlMap.remove(i * 32);
+                testingMap = testingMap.delete(i * 32);
+
+                Assert.assertEquals(controlMap, testingMap);
+                Assert.assertEquals(controlMap.entrySet(), new HashSet<>(testingMap.entrySet()));
+            }
+        }
+
+        @Test
+        public void testEmptyMapIsShared() {
+            PersistentMap<String, Integer> testingMap = HashTrieMap.<String, Integer>empty().insert("a", 1);
+
+            Assert.assertSame(HashTrieMap.empty(), testingMap.delete("a"));
+            Assert.assertSame(HashTrieMap.empty(), testingMap.filter((k, v) -> false));
+            Assert.assertTrue(new HashTrieMap<>().equals(HashTrieMap.empty()));
+        }
+
+        @Test
+        public void testInsertAllKeepsEntries() {
+            PersistentMap<String, Integer> testingMap = HashTrieMap.<String, Integer>empty()
+                    .insert("a", 1)
+                    .insertAll(Map.of("b", 2, "c", 3));
+
+            Assert.assertEquals(Map.of("a", 1, "b", 2, "c", 3), testingMap);
+        }
+    }
+
+    public static class CursorTest {
+        public final Map<String, Integer> controlMap = new HashMap<>();
+        public HashTrieMap<String, Integer> testingMap;
+
+        {
+            for (int i = 0; i < 10000; i++) {
+                controlMap.put(HashTrieMapGenerator.getRandomString(), i);
+            }
+            testingMap = HashTrieMap.<String, Integer>empty().insertAll(controlMap);
+        }
+
+        @Test
+        public void testPagination() {
+            Map<String, Integer> paged = new HashMap<>();
+            long position = HashTrieMap.Cursor.START.toLong();
+            int pages = 0;
+
+            HashTrieMap.Page<String, Integer> page;
+
+            do {
+                page = testingMap.page(HashTrieMap.Cursor.fromLong(position), 64);
+                position = page.next().toLong();
+                pages++;
+
+                for (Map.Entry<String, Integer> entry : page.entries()) {
+                    Assert.assertNull(paged.put(entry.getKey(), entry.getValue()));
+                }
+            } while (page.hasNext());
+
+            Assert.assertEquals(controlMap, paged);
+            Assert.assertEquals((controlMap.size() + 63) / 64, pages);
+        }
+
+        @Test
+        public void testHashCollisionNodePagination() {
+            HashTrieMap<String, Integer> collisions =
+                    (HashTrieMap<String, Integer>) new HashTrieMapCollisionGenerator().createPadded();
+
+            HashTrieMap.Page<String, Integer> first = collisions.page(HashTrieMap.Cursor.START, 5);
+            HashTrieMap.Page<String, Integer> second = collisions.page(first.next(), 5);
+            HashTrieMap.Page<String, Integer> third = collisions.page(second.next(), 5);
+
+            Assert.assertEquals(5, first.entries().size());
+            Assert.assertEquals(5, second.entries().size());
+            Assert.assertEquals(2, third.entries().size());
+            Assert.assertFalse(third.hasNext());
+        }
+
+        @Test
+        public void testEmptyMap() {
+            HashTrieMap.Page<String, Integer> page = HashTrieMap.<String, Integer>empty().page(HashTrieMap.Cursor.START, 10);
+
+            Assert.assertTrue(page.entries().isEmpty());
+            Assert.assertEquals(HashTrieMap.Cursor.END, page.next());
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void testForeignCursor() {
+            HashTrieMap.Cursor cursor = testingMap.page(HashTrieMap.Cursor.START, 5000).next();
+
+            HashTrieMap.<String, Integer>empty().insert("a", 1).page(cursor, 1);
+        }
+    }
+
+    public static class DiffTest {
+        @Test
+        public void testDiff() {
+            Map<String, Integer> controlMap = new HashMap<>();
+
+            for (int i = 0; i < 10000; i++) {
+                controlMap.put(HashTrieMapGenerator.getRandomString(), i);
+            }
+
+            HashTrieMap<String, Integer> oldMap = HashTrieMap.<String, Integer>empty().insertAll(controlMap);
+            String[] keys = controlMap.keySet().toArray(String[]::new);
+
+            HashTrieMap<String, Integer> newMap = oldMap
+                    .delete(keys[0])
+                    .delete(keys[1])
+                    .insert(keys[2], -1)
+                    .insert("added", 42);
+
+            MapDiff<String, Integer> diff = oldMap.diff(newMap);
+
+            Assert.assertEquals(Map.of("added", 42), diff.added());
+            Assert.assertEquals(Map.of(keys[0], controlMap.get(keys[0]), keys[1], controlMap.get(keys[1])),
+                    diff.removed());
+            Assert.assertEquals(Map.of(keys[2], -1), diff.changed());
+            Assert.assertTrue(newMap.diff(newMap).isEmpty());
+        }
+    }
+
+    public static class AllocationTest {
+        private static final int ITERATIONS = 100000;
+
+        private final HashTrieMap<Integer, Integer> testingMap = HashTrieMap.<Integer, Integer>empty()
+                .insertAll(IntStream.range(0, 10000).boxed().collect(Collectors.toMap(i -> i, i -> i)));
+
+        private static long allocatedBytes(Runnable action) {
+            Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+
+            long before = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            action.run();
+            return bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        }
+
+        @Test
+        public void testNoOpUpdatesReturnSameMap() {
+            Integer value = testingMap.get(42);
+
+            Assert.assertSame(testingMap, testingMap.insert(42, value));
+            Assert.assertSame(testingMap, testingMap.delete(-1));
+            Assert.assertEquals(testingMap.size(), testingMap.insert(42, -42).size());
+            Assert.assertEquals(testingMap.size() + 1, testingMap.insert(-1, -1).size());
+        }
+
+        @Test
+        public void testReadsAndNoOpUpdatesDoNotAllocate() {
+            Integer key = 42;
+            Integer value = testingMap.get(key);
+            Integer absent = -1;
+
+            long bytes = allocatedBytes(() -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    testingMap.get(key);
+                    testingMap.containsKey(absent);
+                    testingMap.insert(key, value);
+                    testingMap.delete(absent);
+                }
+            });
+
+            Assert.assertTrue("Allocated " + bytes + " bytes", bytes < ITERATIONS);
+        }
+    }
 }
@@ -0,0 +1,72 @@
+package ru.nikiens.HashTrieMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class HashTrieMultimapTest {
+    @Test
+    public void testSingleValuesAndPromotion() {
+        HashTrieMultimap<String, Integer> multimap = HashTrieMultimap.<String, Integer>empty()
+                .insert("a", 1)
+                .insert("b", 2)
+                .insert("a", 3)
+                .insert("a", 3);
+
+        Assert.assertEquals(3, multimap.size());
+        Assert.assertEquals(Set.of(1, 3), multimap.get("a"));
+        Assert.assertEquals(Set.of(2), multimap.get("b"));
+        Assert.assertEquals(Set.of(), multimap.get("c"));
+        Assert.assertTrue(multimap.containsEntry("a", 3));
+        Assert.assertFalse(multimap.containsEntry("b", 3));
+    }
+
+    @Test
+    public void testDeleteDemotesToSingleValue() {
+        HashTrieMultimap<String, Integer> multimap = HashTrieMultimap.<String, Integer>empty()
+                .insert("a", 1)
+                .insert("a", 2)
+                .insert("a", 3);
+
+        HashTrieMultimap<String, Integer> deleted = multimap.delete("a", 1).delete("a", 2);
+
+        Assert.assertEquals(Set.of(3), deleted.get("a"));
+        Assert.assertEquals(1, deleted.size());
+        Assert.assertSame(deleted, deleted.delete("a", 4));
+        Assert.assertSame(HashTrieMultimap.empty(), deleted.delete("a", 3));
+        Assert.assertSame(HashTrieMultimap.empty(), multimap.deleteAll("a"));
+        Assert.assertEquals(3, multimap.size());
+    }
+
+    @Test
+    public void testAgainstControlMap() {
+        Map<Integer, Set<Integer>> controlMap = new HashMap<>();
+        HashTrieMultimap<Integer, Integer> multimap = HashTrieMultimap.empty();
+
+        for (int i = 0; i < 10000; i++) {
+            int key = i % 1000;
+            int value = (i * 7) % 13;
+
+            controlMap.computeIfAbsent(key, k -> new HashSet<>()).add(value);
+            multimap = multimap.insert(key, value);
+        }
+
+        int size = 0;
+
+        for (Map.Entry<Integer, Set<Integer>> entry : controlMap.entrySet()) {
+            Assert.assertEquals(entry.getValue(), multimap.get(entry.getKey()));
+            size += entry.getValue().size();
+        }
+
+        Map<Integer, Set<Integer>> visited = new HashMap<>();
+        multimap.forEach((k, v) -> visited.computeIfAbsent(k, x -> new HashSet<>()).add(v));
+
+        Assert.assertEquals(size, multimap.size());
+        Assert.assertEquals(controlMap, visited);
+        Assert.assertEquals(controlMap.keySet(), multimap.keySet());
+    }
+}
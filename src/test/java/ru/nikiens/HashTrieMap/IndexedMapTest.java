@@ -0,0 +1,93 @@
+package ru.nikiens.HashTrieMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class IndexedMapTest {
+    private static final IndexedMap.Index<String, Integer> LENGTH = IndexedMap.Index.of(String::length);
+    private static final IndexedMap.Index<Object, Character> FIRST_CHAR =
+            IndexedMap.Index.of(v -> v.toString().charAt(0));
+
+    private final IndexedMap<Integer, String> indexedMap = IndexedMap.<Integer, String>empty()
+            .insert(1, "a")
+            .insert(2, "bb")
+            .insert(3, "ab")
+            .withIndex(LENGTH)
+            .withIndex(FIRST_CHAR);
+
+    @Test
+    public void testIndexIsBuiltOverExistingEntries() {
+        Assert.assertEquals(Set.of(2, 3), indexedMap.lookup(LENGTH, 2));
+        Assert.assertEquals(Set.of(1, 3), indexedMap.lookup(FIRST_CHAR, 'a'));
+        Assert.assertEquals(Set.of(), indexedMap.lookup(LENGTH, 5));
+    }
+
+    @Test
+    public void testInsertAndDeleteUpdateIndexes() {
+        IndexedMap<Integer, String> updated = indexedMap
+                .insert(3, "ccc")
+                .insert(4, "bbb")
+                .delete(1);
+
+        Assert.assertEquals(Set.of(2), updated.lookup(LENGTH, 2));
+        Assert.assertEquals(Set.of(3, 4), updated.lookup(LENGTH, 3));
+        Assert.assertEquals(Set.of(), updated.lookup(FIRST_CHAR, 'a'));
+        Assert.assertEquals(Set.of(2, 4), updated.lookup(FIRST_CHAR, 'b'));
+        Assert.assertEquals(Set.of(2, 3), indexedMap.lookup(LENGTH, 2));
+        Assert.assertSame(updated, updated.delete(1));
+    }
+
+    @Test
+    public void testUpdateKeepingAttribute() {
+        IndexedMap<Integer, String> updated = indexedMap.insert(2, "cc");
+
+        Assert.assertEquals(Set.of(2, 3), updated.lookup(LENGTH, 2));
+        Assert.assertEquals(Set.of(2), updated.lookup(FIRST_CHAR, 'c'));
+        Assert.assertEquals(Set.of(), updated.lookup(FIRST_CHAR, 'b'));
+    }
+
+    @Test
+    public void testBulkTransformsUpdateIndexes() {
+        IndexedMap<Integer, String> mapped = indexedMap.mapValues((k, v) -> v + v);
+
+        Assert.assertEquals(Set.of(2, 3), mapped.lookup(LENGTH, 4));
+        Assert.assertEquals(Set.of(1), mapped.lookup(LENGTH, 2));
+
+        IndexedMap<Integer, String> filtered = indexedMap.filter((k, v) -> v.startsWith("a"));
+
+        Assert.assertEquals(Set.of(3), filtered.lookup(LENGTH, 2));
+        Assert.assertEquals(Set.of(), filtered.lookup(FIRST_CHAR, 'b'));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUndefinedIndex() {
+        indexedMap.withoutIndex(LENGTH).lookup(LENGTH, 1);
+    }
+
+    @Test
+    public void testAgainstScan() {
+        Random random = new Random(42);
+        IndexedMap<Integer, String> testingMap = IndexedMap.<Integer, String>empty().withIndex(LENGTH);
+
+        for (int i = 0; i < 10000; i++) {
+            int key = random.nextInt(2000);
+
+            testingMap = (random.nextInt(4) == 0)
+                    ? testingMap.delete(key)
+                    : testingMap.insert(key, "x".repeat(random.nextInt(10)));
+        }
+
+        Map<Integer, Set<Integer>> controlIndex = new HashMap<>();
+        testingMap.forEach((k, v) -> controlIndex.computeIfAbsent(v.length(), x -> new HashSet<>()).add(k));
+
+        for (int length = 0; length < 10; length++) {
+            Assert.assertEquals(controlIndex.getOrDefault(length, Set.of()), testingMap.lookup(LENGTH, length));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package ru.nikiens.HashTrieMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class PersistentCacheTest {
+    @Test
+    public void testEvictsLeastRecentlyInserted() {
+        PersistentCache<Integer, String> cache = PersistentCache.withMaximumSize(3);
+
+        for (int i = 0; i < 5; i++) {
+            cache = cache.insert(i, "v" + i);
+        }
+
+        Assert.assertEquals(Map.of(2, "v2", 3, "v3", 4, "v4"), cache);
+        Assert.assertEquals(2, cache.stats().evictionCount());
+    }
+
+    @Test
+    public void testLookupRefreshesRecency() {
+        PersistentCache<Integer, String> cache = PersistentCache.<Integer, String>withMaximumSize(3)
+                .insert(0, "v0")
+                .insert(1, "v1")
+                .insert(2, "v2");
+
+        PersistentCache.Lookup<Integer, String> lookup = cache.lookup(0);
+        Assert.assertTrue(lookup.isHit());
+        Assert.assertEquals("v0", lookup.value());
+
+        PersistentCache<Integer, String> touched = lookup.cache().insert(3, "v3");
+        Assert.assertEquals(Map.of(0, "v0", 2, "v2", 3, "v3"), touched);
+
+        PersistentCache<Integer, String> untouched = cache.insert(3, "v3");
+        Assert.assertEquals(Map.of(1, "v1", 2, "v2", 3, "v3"), untouched);
+    }
+
+    @Test
+    public void testRecencyAfterManyLookups() {
+        PersistentCache<Integer, String> cache = PersistentCache.<Integer, String>withMaximumSize(3)
+                .insert(0, "v0")
+                .insert(1, "v1")
+                .insert(2, "v2");
+
+        for (int i = 0; i < 100000; i++) {
+            cache = cache.lookup(i % 2).cache();
+        }
+
+        Assert.assertEquals(Map.of(0, "v0", 1, "v1", 3, "v3"), cache.insert(3, "v3"));
+        Assert.assertEquals(Map.of(1, "v1", 2, "v2", 3, "v3"), cache.lookup(2).cache().insert(3, "v3"));
+    }
+
+    @Test
+    public void testStatistics() {
+        PersistentCache<Integer, String> cache = PersistentCache.<Integer, String>withMaximumSize(2)
+                .insert(0, "v0");
+
+        PersistentCache.Lookup<Integer, String> miss = cache.lookup(1);
+        Assert.assertFalse(miss.isHit());
+        Assert.assertNull(miss.value());
+
+        PersistentCache<Integer, String> next = miss.cache().lookup(0).cache();
+
+        Assert.assertEquals(1, next.stats().hitCount());
+        Assert.assertEquals(1, next.stats().missCount());
+        Assert.assertEquals(0.5, next.stats().hitRate(), 0.0);
+        Assert.assertEquals(0, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testWeightBound() {
+        PersistentCache<String, String> cache =
+                PersistentCache.withMaximumWeight(10, (k, v) -> v.length());
+
+        cache = cache.insert("a", "1234").insert("b", "1234").insert("c", "12");
+        Assert.assertEquals(10, cache.weight());
+        Assert.assertEquals(3, cache.size());
+
+        cache = cache.insert("a", "123456");
+        Assert.assertEquals(Map.of("c", "12", "a", "123456"), cache);
+        Assert.assertEquals(8, cache.weight());
+    }
+
+    @Test
+    public void testDeleteAndFilter() {
+        PersistentCache<Integer, Integer> cache = PersistentCache.withMaximumSize(100);
+
+        for (int i = 0; i < 100; i++) {
+            cache = cache.insert(i, i);
+        }
+
+        cache = cache.delete(0).filter((k, v) -> v % 2 == 0);
+        Assert.assertEquals(49, cache.size());
+        Assert.assertEquals(49, cache.weight());
+
+        for (int i = 100; i < 152; i++) {
+            cache = cache.insert(i, i);
+        }
+        Assert.assertEquals(100, cache.size());
+        Assert.assertFalse(cache.containsKey(2));
+        Assert.assertTrue(cache.containsKey(4));
+    }
+
+    @Test
+    public void testLookupsFromSharedSnapshot() {
+        PersistentCache<Integer, Integer> cache = PersistentCache.withMaximumSize(1000);
+
+        for (int i = 0; i < 1000; i++) {
+            cache = cache.insert(i, i);
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            PersistentCache<Integer, Integer> touched = cache.lookup(i).cache().insert(1000, 1000);
+            int evicted = (i == 0) ? 1 : 0;
+
+            Assert.assertTrue(touched.containsKey(i));
+            Assert.assertFalse(touched.containsKey(evicted));
+            Assert.assertEquals(1000, touched.size());
+        }
+
+        PersistentCache<Integer, Integer> mapped = cache.mapValues((k, v) -> -v).insert(1000, 1000);
+
+        Assert.assertFalse(mapped.containsKey(0));
+        Assert.assertEquals(Integer.valueOf(-1), mapped.get(1));
+    }
+}
@@ -0,0 +1,141 @@
+package ru.nikiens.HashTrieMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+
+public class PersistentMapPublisherTest {
+    private static class RecordingSubscriber implements Flow.Subscriber<PersistentMapPublisher.Change<String, Integer>> {
+        private final List<PersistentMapPublisher.Change<String, Integer>> changes = new ArrayList<>();
+        private final long initialRequest;
+
+        private Flow.Subscription subscription;
+        private boolean isCompleted;
+
+        private RecordingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(PersistentMapPublisher.Change<String, Integer> item) {
+            changes.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            throw new AssertionError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            isCompleted = true;
+        }
+    }
+
+    private final PersistentMapPublisher<String, Integer> publisher = new PersistentMapPublisher<>(
+            HashTrieMap.<String, Integer>empty().insert("a", 1).insert("b", 2), Runnable::run);
+
+    @Test
+    public void testEveryVersionIsPublished() {
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+
+        publisher.update(m -> m.insert("c", 3));
+        publisher.update(m -> m.delete("a"));
+        publisher.update(m -> m.insert("b", 20));
+
+        Assert.assertEquals(3, subscriber.changes.size());
+        Assert.assertEquals(3, publisher.version());
+
+        MapDiff<String, Integer> first = subscriber.changes.get(0).diff();
+        Assert.assertEquals(Map.of("c", 3), first.added());
+        Assert.assertTrue(first.removed().isEmpty());
+
+        MapDiff<String, Integer> second = subscriber.changes.get(1).diff();
+        Assert.assertEquals(Map.of("a", 1), second.removed());
+
+        MapDiff<String, Integer> third = subscriber.changes.get(2).diff();
+        Assert.assertEquals(Map.of("b", 20), third.changed());
+        Assert.assertEquals(2, subscriber.changes.get(2).fromVersion());
+        Assert.assertSame(publisher.current(), subscriber.changes.get(2).map());
+    }
+
+    @Test
+    public void testSlowSubscriberGetsCoalescedChange() {
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        publisher.subscribe(subscriber, true);
+
+        publisher.update(m -> m.insert("c", 3));
+        publisher.update(m -> m.delete("a"));
+        publisher.update(m -> m.insert("c", 30));
+
+        Assert.assertTrue(subscriber.changes.isEmpty());
+
+        subscriber.subscription.request(1);
+
+        Assert.assertEquals(1, subscriber.changes.size());
+
+        PersistentMapPublisher.Change<String, Integer> change = subscriber.changes.get(0);
+        Assert.assertEquals(0, change.fromVersion());
+        Assert.assertEquals(3, change.version());
+        Assert.assertEquals(Map.of("c", 30), change.diff().added());
+        Assert.assertEquals(Map.of("a", 1), change.diff().removed());
+        Assert.assertTrue(change.diff().changed().isEmpty());
+    }
+
+    @Test
+    public void testBackPressure() {
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        publisher.subscribe(subscriber);
+
+        publisher.update(m -> m.insert("c", 3));
+        publisher.update(m -> m.insert("d", 4));
+
+        Assert.assertEquals(1, subscriber.changes.size());
+
+        subscriber.subscription.request(1);
+
+        Assert.assertEquals(2, subscriber.changes.size());
+        Assert.assertEquals(Map.of("d", 4), subscriber.changes.get(1).diff().added());
+    }
+
+    @Test
+    public void testCloseCompletesSubscribers() {
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        publisher.subscribe(subscriber);
+
+        publisher.update(m -> m.insert("c", 3));
+        publisher.close();
+
+        Assert.assertFalse(subscriber.isCompleted);
+
+        subscriber.subscription.request(1);
+
+        Assert.assertEquals(1, subscriber.changes.size());
+        Assert.assertTrue(subscriber.isCompleted);
+    }
+
+    @Test
+    public void testUnchangedMapIsNotPublished() {
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+
+        publisher.update(m -> m.delete("z").filter((k, v) -> true));
+
+        Assert.assertEquals(0, publisher.version());
+        Assert.assertTrue(subscriber.changes.isEmpty());
+    }
+}
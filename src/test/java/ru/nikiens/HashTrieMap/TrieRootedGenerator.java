@@ -0,0 +1,58 @@
+package ru.nikiens.HashTrieMap;
+
+import com.google.common.collect.testing.SampleElements;
+import com.google.common.collect.testing.TestMapGenerator;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generator creating the maps of another generator with a trie root, so that the conformance
+ * suites cover {@code BitmapIndexedNode} and {@code HashCollisionNode} although the samples fit
+ * in a flat small map.
+ */
+public class TrieRootedGenerator implements TestMapGenerator<String, Integer> {
+    private final TestMapGenerator<String, Integer> generator;
+
+    public TrieRootedGenerator(TestMapGenerator<String, Integer> generator) {
+        this.generator = generator;
+    }
+
+    @Override
+    public String[] createKeyArray(int length) {
+        return generator.createKeyArray(length);
+    }
+
+    @Override
+    public Integer[] createValueArray(int length) {
+        return generator.createValueArray(length);
+    }
+
+    @Override
+    public SampleElements<Map.Entry<String, Integer>> samples() {
+        return generator.samples();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Map<String, Integer> create(Object... elements) {
+        Map<String, Integer> entries = new LinkedHashMap<>();
+
+        for (Object o : elements) {
+            Map.Entry<String, Integer> e = (Map.Entry<String, Integer>) o;
+            entries.put(e.getKey(), e.getValue());
+        }
+        return HashTrieMap.trieOf(entries);
+    }
+
+    @Override
+    public Map.Entry<String, Integer>[] createArray(int length) {
+        return generator.createArray(length);
+    }
+
+    @Override
+    public Iterable<Map.Entry<String, Integer>> order(List<Map.Entry<String, Integer>> insertionOrder) {
+        return generator.order(insertionOrder);
+    }
+}
@@ -0,0 +1,185 @@
+package ru.nikiens.HashTrieMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+public class VersionedMapTest {
+    private static class ManualClock extends Clock {
+        private Instant instant = Instant.EPOCH;
+
+        private void advance(Duration duration) {
+            instant = instant.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+
+    private final ManualClock clock = new ManualClock();
+
+    private static HashTrieMap<Integer, Integer> mapOf(int size) {
+        HashTrieMap<Integer, Integer> map = HashTrieMap.empty();
+
+        for (int i = 0; i < size; i++) {
+            map = map.insert(i, i);
+        }
+        return map;
+    }
+
+    @Test
+    public void testLookupOfEveryVersion() {
+        VersionedMap<Integer, Integer> versions = new VersionedMap<>(HashTrieMap.empty(),
+                VersionedMap.Retention.unbounded(), clock);
+
+        for (int i = 0; i < 100; i++) {
+            clock.advance(Duration.ofSeconds(1));
+            Assert.assertEquals(i + 1, versions.commit(versions.current().insert(i, i)));
+        }
+
+        Assert.assertEquals(101, versions.retainedVersions());
+
+        for (int i = 0; i <= 100; i++) {
+            Assert.assertEquals(i, versions.asOf(i).size());
+            Assert.assertEquals(Instant.EPOCH.plusSeconds(i), versions.snapshot(i).timestamp());
+        }
+
+        Assert.assertEquals(42, versions.asOf(Instant.EPOCH.plusMillis(42500)).version());
+        Assert.assertEquals(100, versions.version());
+        Assert.assertEquals(100, versions.commit(versions.current()));
+    }
+
+    @Test
+    public void testRetentionByCount() {
+        VersionedMap<Integer, Integer> versions = new VersionedMap<>(HashTrieMap.empty(),
+                VersionedMap.Retention.unbounded().withMaximumVersions(10), clock);
+
+        for (int i = 0; i < 100; i++) {
+            versions.commit(versions.current().insert(i, i));
+        }
+
+        Assert.assertEquals(10, versions.retainedVersions());
+        Assert.assertEquals(91, versions.oldestVersion());
+        Assert.assertEquals(91, versions.asOf(91).size());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testDroppedVersion() {
+        VersionedMap<Integer, Integer> versions = new VersionedMap<>(HashTrieMap.empty(),
+                VersionedMap.Retention.unbounded().withMaximumVersions(1), clock);
+
+        versions.commit(versions.current().insert(1, 1));
+        versions.asOf(0);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testFutureVersion() {
+        new VersionedMap<>(HashTrieMap.empty(), VersionedMap.Retention.unbounded(), clock).asOf(1);
+    }
+
+    @Test
+    public void testRetentionByAge() {
+        VersionedMap<String, Integer> versions = new VersionedMap<>(HashTrieMap.empty(),
+                VersionedMap.Retention.unbounded().withMaximumAge(Duration.ofMinutes(1)), clock);
+
+        versions.commit(versions.current().insert("a", 1));
+        clock.advance(Duration.ofSeconds(30));
+        versions.commit(versions.current().insert("b", 2));
+        clock.advance(Duration.ofSeconds(45));
+
+        versions.trim();
+
+        Assert.assertEquals(2, versions.oldestVersion());
+        Assert.assertEquals(2, versions.asOf(Instant.EPOCH.plusSeconds(75)).version());
+
+        clock.advance(Duration.ofHours(1));
+        versions.trim();
+
+        Assert.assertEquals(1, versions.retainedVersions());
+        Assert.assertEquals(Map.of("a", 1, "b", 2), versions.current());
+    }
+
+    @Test
+    public void testRetentionByBytes() {
+        HashTrieMap<Integer, Integer> initial = mapOf(10000);
+        long initialBytes = initial.estimatedBytes();
+
+        VersionedMap<Integer, Integer> versions = new VersionedMap<>(initial,
+                VersionedMap.Retention.unbounded().withMaximumBytes(initialBytes + 4096), clock);
+
+        Assert.assertEquals(initialBytes, versions.retainedBytes());
+
+        for (int i = 0; i < 1000; i++) {
+            versions.commit(versions.current().insert(i, -i));
+            Assert.assertTrue(versions.retainedBytes() <= initialBytes + 4096);
+        }
+
+        Assert.assertTrue(versions.retainedVersions() > 1);
+        Assert.assertTrue(versions.retainedVersions() < 1000);
+        Assert.assertEquals(-999, (int) versions.current().get(999));
+    }
+
+    @Test
+    public void testSharing() {
+        VersionedMap<Integer, Integer> versions = new VersionedMap<>(mapOf(10000),
+                VersionedMap.Retention.unbounded(), clock);
+
+        versions.commit(versions.current().insert(-1, -1));
+        versions.commit(versions.current().delete(5000));
+
+        VersionedMap.Sharing middle = versions.sharing(1);
+
+        Assert.assertEquals(versions.current().estimatedBytes(), versions.sharing(2).bytes());
+        Assert.assertTrue(middle.sharedWithPrevious() > middle.bytes() * 9 / 10);
+        Assert.assertTrue(middle.sharedWithNext() > middle.bytes() * 9 / 10);
+        Assert.assertTrue(middle.sharedWithPrevious() < middle.bytes());
+        Assert.assertEquals(0, versions.sharing(0).sharedWithPrevious());
+        Assert.assertEquals(0, versions.sharing(2).sharedWithNext());
+    }
+
+    @Test
+    public void testReplacedCollidingValueSharesKeys() {
+        HashTrieMap<String, Integer> map = HashTrieMap.empty();
+
+        for (int i = 0; i < 10; i++) {
+            map = map.insert("key" + i, i);
+        }
+        map = map.insert("AaAa", 0).insert("AaBB", 0).insert("BBAa", 0);
+
+        long replaced = map.insert("AaAa", 1).uniqueBytes(map, o -> 1);
+        long added = map.insert("BBBB", 1).uniqueBytes(map, o -> 1);
+
+        Assert.assertEquals(added - 1, replaced);
+    }
+
+    @Test
+    public void testRollback() {
+        VersionedMap<String, Integer> versions = new VersionedMap<>(HashTrieMap.empty(),
+                VersionedMap.Retention.unbounded(), clock);
+
+        versions.commit(versions.current().insert("a", 1));
+        versions.commit(versions.current().insert("b", 2));
+
+        Assert.assertEquals(3, versions.rollback(1));
+        Assert.assertSame(versions.asOf(1), versions.current());
+    }
+}
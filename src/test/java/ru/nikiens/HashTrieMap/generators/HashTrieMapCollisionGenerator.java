@@ -3,9 +3,25 @@ package ru.nikiens.HashTrieMap.generators;
 import com.google.common.collect.testing.Helpers;
 import com.google.common.collect.testing.SampleElements;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class HashTrieMapCollisionGenerator extends HashTrieMapGenerator {
+    /**
+     * The remaining colliding keys of both lengths. Together with the samples there are more
+     * entries than a small map holds, so they are stored in hash collision nodes.
+     */
+    private static final List<Map.Entry<String, Integer>> padding = List.of(
+            Helpers.mapEntry("AaBBBB", 10),
+            Helpers.mapEntry("BBAaAa", 11),
+            Helpers.mapEntry("BBAaBB", 12),
+            Helpers.mapEntry("BBBBAa", 13),
+            Helpers.mapEntry("BBBBBB", 14),
+            Helpers.mapEntry("AaAa", 15),
+            Helpers.mapEntry("BBAa", 16)
+    );
+
     @Override
     public SampleElements<Map.Entry<String, Integer>> samples() {
         return new SampleElements<>(
@@ -16,4 +32,11 @@ public class HashTrieMapCollisionGenerator extends HashTrieMapGenerator {
                 Helpers.mapEntry("AaBB", 5)
         );
     }
+
+    public Map<String, Integer> createPadded() {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(samples().asList());
+
+        entries.addAll(padding);
+        return create(entries.toArray());
+    }
 }
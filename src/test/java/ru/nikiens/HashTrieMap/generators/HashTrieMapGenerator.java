@@ -55,7 +55,7 @@ public class HashTrieMapGenerator implements TestMapGenerator<String, Integer> {
 
         for (Object o : elements) {
             Map.Entry<String, Integer> e = (Map.Entry<String, Integer>) o;
-            dst = (HashTrieMap<String, Integer>) dst.insert(e.getKey(), e.getValue());
+            dst = dst.insert(e.getKey(), e.getValue());
         }
         return dst;
     }